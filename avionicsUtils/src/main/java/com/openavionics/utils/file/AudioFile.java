@@ -2,6 +2,8 @@ package com.openavionics.utils.file;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 
 public interface AudioFile {
 	void open(File file) throws IOException, AudioFileException;
@@ -32,6 +34,18 @@ public interface AudioFile {
 	int writeFrames(double[] sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException;
 	int writeFrames(double[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException;
 
+	/**
+	 * raw sample data, in the file's own layout, transferred from the buffer's position, as many whole frames
+	 * as fit in its remaining space, up to numFrames. the position is advanced past the data transferred
+	 */
+	int readFrames(ByteBuffer sampleBuffer, int numFramesToRead) throws IOException, AudioFileException;
+	int writeFrames(ByteBuffer sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException;
+	/**
+	 * interleaved normalised float samples, with the same position conventions as the raw versions
+	 */
+	int readFrames(FloatBuffer sampleBuffer, int numFramesToRead) throws IOException, AudioFileException;
+	int writeFrames(FloatBuffer sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException;
+
 	enum Type { WAVE, FLAC, APE, MP3 }
 	enum IOState {READING, WRITING, CLOSED};
 
@@ -0,0 +1,47 @@
+package com.openavionics.utils.file;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Shared pool of the IO buffers that WavFile and its helpers borrow at open() or create() and give back at close(),
+ * so working through thousands of short files doesn't allocate a new set of buffers for each one. Buffers are
+ * pooled by size and by whether they are direct, and only a few of each are kept.
+ *
+ * Buffers come out cleared, in little endian order. A buffer must not be used after it has been released.
+ */
+final class BufferPool
+{
+	private final static int MAX_POOLED = 16;	// Buffers kept of each size and kind
+
+	private final static HashMap<Integer, ArrayDeque<ByteBuffer>> heapBuffers = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+	private final static HashMap<Integer, ArrayDeque<ByteBuffer>> directBuffers = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+
+	private BufferPool()
+	{
+	}
+
+	static synchronized ByteBuffer acquire(int size, boolean direct)
+	{
+		ArrayDeque<ByteBuffer> pooled = (direct? directBuffers : heapBuffers).get(size);
+		ByteBuffer b = pooled != null? pooled.poll() : null;
+		if (b == null) {
+			b = direct? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+		b.clear();
+		return b.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	static synchronized void release(ByteBuffer b)
+	{
+		HashMap<Integer, ArrayDeque<ByteBuffer>> buffers = b.isDirect()? directBuffers : heapBuffers;
+		ArrayDeque<ByteBuffer> pooled = buffers.get(b.capacity());
+		if (pooled == null) {
+			pooled = new ArrayDeque<ByteBuffer>();
+			buffers.put(b.capacity(), pooled);
+		}
+		if (pooled.size() < MAX_POOLED) pooled.add(b);
+	}
+}
@@ -0,0 +1,255 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded blocks of frames, keyed by file and block index, for scrubbing back and forth across recordings.
+ * The key includes the length and modification time the file had when opened, so a file rewritten in place and
+ * opened again misses rather than reading the old version's blocks, which are left to be evicted.
+ * Each block holds a fixed number of interleaved frames, decoded either to normalised floats or to raw shorts, and
+ * the least recently used blocks are evicted once the cache holds more than its size limit.
+ *
+ * Blocks are filled with WavFile.readFramesAt(), so the cache can be shared between threads, and never disturbs the
+ * position of the files it reads. Two threads missing on the same block may both decode it, which is harmless.
+ */
+public class DecodedBlockCache
+{
+	private static class Key
+	{
+		final Object file;		// The WavFile itself if it has no File, being on a channel
+		final long length;		// Length and modification time of the file when opened, so that blocks of a file
+		final long modified;	// rewritten in place aren't taken for the new version's
+		final long index;
+		final boolean floats;
+
+		Key(WavFile wavFile, long index, boolean floats)
+		{
+			this.file = wavFile.getFile() != null? wavFile.getFile() : wavFile;
+			this.length = wavFile.getFileLength();
+			this.modified = wavFile.getLastModified();
+			this.index = index;
+			this.floats = floats;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return index == k.index && floats == k.floats && length == k.length && modified == k.modified && file.equals(k.file);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (file.hashCode() * 31 + (int) (modified ^ length)) * 31 + (int) (index ^ (index >>> 32)) * 2 + (floats? 1 : 0);
+		}
+	}
+
+	private final int blockFrames;
+	private final long maxBytes;
+	private final LinkedHashMap<Key, Object> blocks;	// guarded by this, float[] or short[] in access order
+
+	private long sizeBytes;			// guarded by this
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param blockFrames number of frames in each block
+	 * @param maxBytes size of decoded data to hold before evicting
+	 */
+	public DecodedBlockCache(int blockFrames, long maxBytes)
+	{
+		this.blockFrames = Math.max(1, blockFrames);
+		this.maxBytes = maxBytes;
+		this.blocks = new LinkedHashMap<Key, Object>(16, 0.75f, true);
+	}
+
+	/**
+	 * read frames through the cache, as WavFile.readFramesAt()
+	 * @param wavFile open for reading
+	 * @param frame first frame to read
+	 * @param sampleBuffer interleaved normalised samples
+	 * @param offset
+	 * @param numFramesToRead
+	 * @return number of frames read, fewer than asked for at the end of the file
+	 */
+	public int readFrames(WavFile wavFile, long frame, float[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return read(wavFile, frame, sampleBuffer, offset, numFramesToRead);
+	}
+
+	public int readFrames(WavFile wavFile, long frame, short[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return read(wavFile, frame, sampleBuffer, offset, numFramesToRead);
+	}
+
+	private int read(WavFile wavFile, long frame, Object sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		if (frame < 0 || frame > wavFile.getNumFrames()) throw new AudioFileException("Wave read, invalid frame requested");
+		int numChannels = wavFile.getNumChannels();
+		int framesToRead = (int) Math.min(numFramesToRead, wavFile.getNumFrames() - frame);
+		int framesLeft = framesToRead;
+		while (framesLeft > 0) {
+			long index = frame / blockFrames;
+			int start = (int) (frame - index * blockFrames);
+			Object block = getBlock(wavFile, index, sampleBuffer instanceof float[]);
+			int n = Math.min(framesLeft, length(block) / numChannels - start);
+			if (n <= 0) throw new AudioFileException("Not enough data available");
+			System.arraycopy(block, start * numChannels, sampleBuffer, offset, n * numChannels);
+			offset += n * numChannels;
+			frame += n;
+			framesLeft -= n;
+		}
+		return framesToRead;
+	}
+
+	private Object getBlock(WavFile wavFile, long index, boolean floats) throws IOException, AudioFileException
+	{
+		Key key = new Key(wavFile, index, floats);
+		synchronized (this) {
+			Object block = blocks.get(key);
+			if (block != null) {
+				hits++;
+				return block;
+			}
+			misses++;
+		}
+
+		long first = index * blockFrames;
+		int numFrames = (int) Math.min(blockFrames, wavFile.getNumFrames() - first);
+		int numSamples = numFrames * wavFile.getNumChannels();
+		Object block;
+		if (floats) {
+			float[] f = new float[numSamples];
+			wavFile.readFramesAt(first, f, 0, numFrames);
+			block = f;
+		} else {
+			short[] s = new short[numSamples];
+			wavFile.readFramesAt(first, s, 0, numFrames);
+			block = s;
+		}
+
+		synchronized (this) {
+			Object old = blocks.put(key, block);
+			if (old != null) sizeBytes -= sizeOf(old);
+			sizeBytes += sizeOf(block);
+			evict();
+		}
+		return block;
+	}
+
+	/**
+	 * drop the least recently used blocks until under the limit, keeping the newest even if it alone is over
+	 */
+	private void evict()
+	{
+		Iterator<Map.Entry<Key, Object>> it = blocks.entrySet().iterator();
+		while (sizeBytes > maxBytes && blocks.size() > 1) {
+			sizeBytes -= sizeOf(it.next().getValue());
+			it.remove();
+		}
+	}
+
+	private static int length(Object block)
+	{
+		return block instanceof float[]? ((float[]) block).length : ((short[]) block).length;
+	}
+
+	private static long sizeOf(Object block)
+	{
+		return (block instanceof float[]? 4L : 2L) * length(block);
+	}
+
+	/**
+	 * drop all the blocks of a file, when it has been rewritten, rather than waiting for them to be evicted
+	 * @param file
+	 */
+	public synchronized void invalidate(File file)
+	{
+		Iterator<Map.Entry<Key, Object>> it = blocks.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Object> e = it.next();
+			if (e.getKey().file.equals(file)) {
+				sizeBytes -= sizeOf(e.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear()
+	{
+		blocks.clear();
+		sizeBytes = 0;
+	}
+
+	public int getBlockFrames()
+	{
+		return blockFrames;
+	}
+
+	public synchronized long getSizeBytes()
+	{
+		return sizeBytes;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * a reader for one file that keeps its own position, and reads through the cache
+	 * @param wavFile open for reading
+	 * @return
+	 */
+	public Reader reader(WavFile wavFile)
+	{
+		return new Reader(wavFile);
+	}
+
+	public class Reader
+	{
+		private final WavFile wavFile;
+		private long currentFrame;
+
+		Reader(WavFile wavFile)
+		{
+			this.wavFile = wavFile;
+		}
+
+		public void seekToFrame(long frame) throws AudioFileException
+		{
+			if (frame < 0 || frame > wavFile.getNumFrames()) throw new AudioFileException("Wave seek, invalid frame requested");
+			currentFrame = frame;
+		}
+
+		public long getCurrentFrame()
+		{
+			return currentFrame;
+		}
+
+		public int readFrames(float[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+		{
+			int n = read(wavFile, currentFrame, sampleBuffer, offset, numFramesToRead);
+			currentFrame += n;
+			return n;
+		}
+
+		public int readFrames(short[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+		{
+			int n = read(wavFile, currentFrame, sampleBuffer, offset, numFramesToRead);
+			currentFrame += n;
+			return n;
+		}
+	}
+}
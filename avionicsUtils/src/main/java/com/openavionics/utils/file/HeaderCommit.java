@@ -0,0 +1,144 @@
+package com.openavionics.utils.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Background header commits for WavFile's durable mode. Every so often, or after so much data, a dedicated thread
+ * patches the RIFF and data sizes in place to cover whatever has reached the channel, so a recording that stops
+ * without close() still opens with nearly all of its data. The writer only adds up what it writes, so none of the
+ * syncing lands on it.
+ *
+ * Commits are grouped: each one forces the data out before writing a header that counts it, and that force also
+ * makes the header of the commit before it durable, so there is one sync per commit rather than one per write.
+ */
+class HeaderCommit implements Runnable
+{
+	private final FileChannel channel;
+	private final WavHeader format;			// The layout of the file, and dataStart the length of its header
+	private final long maxFrames;
+	private final boolean reserveDs64;
+	private final long intervalMillis;
+	private final long intervalBytes;
+	private final byte[] header = new byte[WavHeader.MAX_LENGTH];
+	private final Thread thread;
+
+	private long bytesSinceRequest;			// Producer only
+	private boolean requested;				// guarded by this
+	private boolean closed;					// guarded by this
+	private long committedFrames;
+	private volatile IOException error;
+	private volatile int commits;
+
+	/**
+	 * @param channel being written, from the start, by WavFile
+	 * @param format with dataStart set to the length of the header
+	 * @param maxFrames number of frames the file was created for
+	 * @param reserveDs64 as the header was written
+	 * @param intervalMillis commit at least this often, 0 for no time limit
+	 * @param intervalBytes commit once this much more has been written, 0 for no byte limit
+	 */
+	HeaderCommit(FileChannel channel, WavHeader format, long maxFrames, boolean reserveDs64, long intervalMillis, long intervalBytes)
+	{
+		this.channel = channel;
+		this.format = format;
+		this.maxFrames = maxFrames;
+		this.reserveDs64 = reserveDs64;
+		this.intervalMillis = intervalMillis;
+		this.intervalBytes = intervalBytes;
+
+		thread = new Thread(this, "WavFile header commit");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * count data handed to the channel, or to write behind, asking for a commit when there has been enough
+	 * @param numBytes
+	 * @throws IOException if an earlier commit failed
+	 */
+	void wrote(long numBytes) throws IOException
+	{
+		if (error != null) throw new IOException("Header commit failed", error);
+		if (intervalBytes <= 0) return;
+		bytesSinceRequest += numBytes;
+		if (bytesSinceRequest >= intervalBytes) {
+			bytesSinceRequest = 0;
+			synchronized (this) {
+				requested = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * stop the thread, without a last commit, as close() writes the final header itself
+	 * @throws IOException if a commit failed
+	 */
+	void close() throws IOException
+	{
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for header commit");
+		}
+		if (error != null) throw new IOException("Header commit failed", error);
+	}
+
+	int getCommits()
+	{
+		return commits;
+	}
+
+	@Override
+	public void run()
+	{
+		try {
+			while (true) {
+				synchronized (this) {
+					long deadline = System.nanoTime() + intervalMillis * 1000000L;
+					while (!requested && !closed) {
+						if (intervalMillis <= 0) {
+							wait();
+						} else {
+							long left = (deadline - System.nanoTime()) / 1000000L;
+							if (left <= 0) break;
+							wait(left);
+						}
+					}
+					if (closed) return;
+					requested = false;
+				}
+				commit();
+			}
+		} catch (InterruptedException e) {
+			// nothing more will be committed
+		} catch (IOException e) {
+			error = e;
+		}
+	}
+
+	/**
+	 * patch the header to cover the whole frames that are on the channel, once they are down. the channel is only
+	 * ever written in order, so its position is the end of the data, where its size may be preallocated space
+	 */
+	private void commit() throws IOException
+	{
+		long frames = Math.min(maxFrames, Math.max(0, channel.position() - format.dataStart) / format.blockAlign);
+		if (frames == committedFrames) return;
+
+		channel.force(false);
+		int length = format.put(header, frames * format.blockAlign, reserveDs64);
+		ByteBuffer bb = ByteBuffer.wrap(header, 0, length);
+		while (bb.hasRemaining()) channel.write(bb, bb.position());
+		committedFrames = frames;
+		commits++;
+	}
+}
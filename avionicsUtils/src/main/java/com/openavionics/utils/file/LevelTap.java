@@ -0,0 +1,189 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.util.Log;
+
+/**
+ * Tap on the write path of a WavFile, set with WavFile.setLevelTap(), that keeps a PeakPyramid and running per
+ * channel levels up to date as the recording is written, so neither needs a second pass over the file. It sees
+ * the encoded data as it leaves the local buffer, so it follows every kind of write, in the values that actually
+ * end up in the file.
+ *
+ * The levels are the peak and rms of each channel over the last complete window of frames, for meters. They, and
+ * getPyramid(), may be read from any thread while recording. getPyramid() copies the whole pyramid, but outside
+ * the lock the writer takes, so polling it doesn't hold up the recording.
+ *
+ * If asked to, the tap writes the sidecar for the file when it is closed, so PeakSidecar finds it up to date.
+ */
+public class LevelTap
+{
+	public final static int DEFAULT_WINDOW_FRAMES = 2048;
+
+	private final int baseFrames;
+	private final int factor;
+	private final int windowFrames;
+	private final boolean writeSidecar;
+
+	// guarded by this
+	private PeakPyramid.Builder builder;
+	private SampleCodec codec;
+	private int numChannels;
+	private int blockAlign;
+	private byte[] partialFrame;			// Bytes of a frame split between two writes
+	private int partialBytes;
+	private float[] scratch;
+	private float[] windowPeak;
+	private double[] windowSumSquares;
+	private int windowCount;
+
+	private volatile float[] levels;		// Peak and rms of each channel in turn, for the last complete window
+
+	public LevelTap()
+	{
+		this(PeakPyramid.DEFAULT_BASE_FRAMES, PeakPyramid.DEFAULT_FACTOR, DEFAULT_WINDOW_FRAMES, true);
+	}
+
+	/**
+	 * @param baseFrames frames per peak of the pyramid's lowest level
+	 * @param factor peaks of each level summarised by one of the level above
+	 * @param windowFrames frames over which each reading of the levels is taken
+	 * @param writeSidecar write the sidecar for the file when it is closed
+	 */
+	public LevelTap(int baseFrames, int factor, int windowFrames, boolean writeSidecar)
+	{
+		this.baseFrames = baseFrames;
+		this.factor = factor;
+		this.windowFrames = Math.max(1, windowFrames);
+		this.writeSidecar = writeSidecar;
+	}
+
+	/**
+	 * reset for a newly created file
+	 */
+	synchronized void start(int numChannels, int blockAlign, SampleCodec codec)
+	{
+		this.numChannels = numChannels;
+		this.blockAlign = blockAlign;
+		this.codec = codec;
+		builder = new PeakPyramid.Builder(numChannels, baseFrames, factor);
+		partialFrame = new byte[blockAlign];
+		partialBytes = 0;
+		scratch = new float[Math.max(1, 4096 / blockAlign) * numChannels];
+		windowPeak = new float[numChannels];
+		windowSumSquares = new double[numChannels];
+		windowCount = 0;
+		levels = new float[2 * numChannels];
+	}
+
+	/**
+	 * take in encoded data on its way to the file, which may start or end part way through a frame
+	 * @param src little endian
+	 * @param pos
+	 * @param numBytes
+	 */
+	synchronized void add(ByteBuffer src, int pos, int numBytes)
+	{
+		if (partialBytes > 0) {
+			int n = Math.min(blockAlign - partialBytes, numBytes);
+			for (int i=0 ; i<n ; i++) partialFrame[partialBytes++] = src.get(pos++);
+			numBytes -= n;
+			if (partialBytes < blockAlign) return;
+			partialBytes = 0;
+			decode(ByteBuffer.wrap(partialFrame).order(ByteOrder.LITTLE_ENDIAN), 0, 1);
+		}
+
+		int framesLeft = numBytes / blockAlign;
+		while (framesLeft > 0) {
+			int n = Math.min(framesLeft, scratch.length / numChannels);
+			decode(src, pos, n);
+			pos += n * blockAlign;
+			framesLeft -= n;
+		}
+
+		partialBytes = numBytes % blockAlign;
+		for (int i=0 ; i<partialBytes ; i++) partialFrame[i] = src.get(pos + i);
+	}
+
+	private void decode(ByteBuffer src, int pos, int numFrames)
+	{
+		codec.decode(src, pos, blockAlign / numChannels, scratch, 0, numFrames * numChannels);
+		builder.add(scratch, 0, numFrames);
+
+		int i = 0;
+		for (int f=0 ; f<numFrames ; f++) {
+			for (int ch=0 ; ch<numChannels ; ch++) {
+				float v = scratch[i++];
+				float a = Math.abs(v);
+				if (a > windowPeak[ch]) windowPeak[ch] = a;
+				windowSumSquares[ch] += v * v;
+			}
+			if (++windowCount == windowFrames) {
+				float[] l = new float[2 * numChannels];
+				for (int ch=0 ; ch<numChannels ; ch++) {
+					l[2 * ch] = windowPeak[ch];
+					l[2 * ch + 1] = (float) Math.sqrt(windowSumSquares[ch] / windowFrames);
+					windowPeak[ch] = 0;
+					windowSumSquares[ch] = 0;
+				}
+				windowCount = 0;
+				levels = l;
+			}
+		}
+	}
+
+	/**
+	 * write the sidecar, once the file is complete
+	 */
+	void finish(File file, int validBits)
+	{
+		if (!writeSidecar) return;
+		try {
+			PeakSidecar.write(getPyramid(), file, validBits);
+		} catch (IOException e) {
+			Log.w("level tap", "could not write " + PeakSidecar.sidecarFor(file), e);
+		}
+	}
+
+	/**
+	 * @return a pyramid of everything written so far, or null before the file is created
+	 */
+	public PeakPyramid getPyramid()
+	{
+		// Only the snapshot is taken under the lock, so that copying the levels doesn't hold up add()
+		PeakPyramid.Builder.Snapshot snapshot;
+		synchronized (this) {
+			if (builder == null) return null;
+			snapshot = builder.snapshot();
+		}
+		return snapshot.build();
+	}
+
+	public synchronized long getFramesSeen()
+	{
+		return builder != null? builder.getNumFrames() : 0;
+	}
+
+	/**
+	 * @param channel
+	 * @return largest magnitude over the last complete window
+	 */
+	public float getPeak(int channel)
+	{
+		float[] l = levels;
+		return l != null? l[2 * channel] : 0;
+	}
+
+	/**
+	 * @param channel
+	 * @return rms over the last complete window
+	 */
+	public float getRms(int channel)
+	{
+		float[] l = levels;
+		return l != null? l[2 * channel + 1] : 0;
+	}
+}
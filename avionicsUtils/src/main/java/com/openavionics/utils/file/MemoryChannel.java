@@ -0,0 +1,223 @@
+package com.openavionics.utils.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A FileChannel over a growable byte array, for reading and writing wave files in memory with
+ * WavFile.open(FileChannel) and WavFile.create(FileChannel, ...). Everything but mapping and locking is supported,
+ * and all of it is thread safe, as WavFile's positional reads and background threads expect.
+ *
+ * Closing the channel keeps the contents, which can still be taken with toByteArray().
+ */
+public class MemoryChannel extends FileChannel
+{
+	private byte[] data;
+	private int size;
+	private int position;
+
+	public MemoryChannel()
+	{
+		this(4096);
+	}
+
+	public MemoryChannel(int capacity)
+	{
+		data = new byte[Math.max(16, capacity)];
+	}
+
+	/**
+	 * @param contents taken as they are, not copied
+	 */
+	public MemoryChannel(byte[] contents)
+	{
+		data = contents;
+		size = contents.length;
+	}
+
+	/**
+	 * @return a copy of the contents
+	 */
+	public synchronized byte[] toByteArray()
+	{
+		return Arrays.copyOf(data, size);
+	}
+
+	private void ensureOpen() throws ClosedChannelException
+	{
+		if (!isOpen()) throw new ClosedChannelException();
+	}
+
+	private void ensureCapacity(long capacity) throws IOException
+	{
+		if (capacity > Integer.MAX_VALUE - 8) throw new IOException("MemoryChannel can't hold more than 2GB");
+		if (capacity > data.length) data = Arrays.copyOf(data, (int) Math.max(capacity, Math.min(Integer.MAX_VALUE - 8, 2L * data.length)));
+	}
+
+	private int readAt(ByteBuffer dst, long at)
+	{
+		if (at >= size) return -1;
+		int n = (int) Math.min(dst.remaining(), size - at);
+		dst.put(data, (int) at, n);
+		return n;
+	}
+
+	private int writeAt(ByteBuffer src, long at) throws IOException
+	{
+		int n = src.remaining();
+		ensureCapacity(at + n);
+		if (at > size) Arrays.fill(data, size, (int) at, (byte) 0);
+		src.get(data, (int) at, n);
+		size = (int) Math.max(size, at + n);
+		return n;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException
+	{
+		ensureOpen();
+		int n = readAt(dst, position);
+		if (n > 0) position += n;
+		return n;
+	}
+
+	@Override
+	public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+	{
+		ensureOpen();
+		long total = 0;
+		for (int i=offset ; i<offset+length ; i++) {
+			int n = read(dsts[i]);
+			if (n < 0) return total > 0? total : -1;
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst, long position) throws IOException
+	{
+		ensureOpen();
+		return readAt(dst, position);
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src) throws IOException
+	{
+		ensureOpen();
+		int n = writeAt(src, position);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		ensureOpen();
+		long total = 0;
+		for (int i=offset ; i<offset+length ; i++) total += write(srcs[i]);
+		return total;
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src, long position) throws IOException
+	{
+		ensureOpen();
+		return writeAt(src, position);
+	}
+
+	@Override
+	public synchronized long position() throws IOException
+	{
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized FileChannel position(long newPosition) throws IOException
+	{
+		ensureOpen();
+		if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+		if (newPosition > Integer.MAX_VALUE - 8) throw new IOException("MemoryChannel can't hold more than 2GB");
+		position = (int) newPosition;
+		return this;
+	}
+
+	@Override
+	public synchronized long size() throws IOException
+	{
+		ensureOpen();
+		return size;
+	}
+
+	@Override
+	public synchronized FileChannel truncate(long newSize) throws IOException
+	{
+		ensureOpen();
+		if (newSize < 0) throw new IllegalArgumentException("Negative size");
+		if (newSize < size) size = (int) newSize;
+		if (position > newSize) position = (int) newSize;
+		return this;
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException
+	{
+		ensureOpen();
+	}
+
+	@Override
+	public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException
+	{
+		ensureOpen();
+		if (position >= size) return 0;
+		int n = (int) Math.min(count, size - position);
+		return target.write(ByteBuffer.wrap(data, (int) position, n));
+	}
+
+	@Override
+	public synchronized long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+	{
+		ensureOpen();
+		if (position > size) return 0;
+		count = Math.min(count, Integer.MAX_VALUE - 8 - position);
+		ensureCapacity(position + count);
+		ByteBuffer dst = ByteBuffer.wrap(data, (int) position, (int) count);
+		while (dst.hasRemaining()) {
+			if (src.read(dst) < 0) break;
+		}
+		int n = dst.position() - (int) position;
+		size = (int) Math.max(size, position + n);
+		return n;
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException
+	{
+		throw new UnsupportedOperationException("MemoryChannel can't be mapped");
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException
+	{
+		throw new UnsupportedOperationException("MemoryChannel can't be locked");
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException
+	{
+		throw new UnsupportedOperationException("MemoryChannel can't be locked");
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException
+	{
+	}
+}
@@ -0,0 +1,409 @@
+package com.openavionics.utils.file;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Multi resolution summary of a recording for drawing waveforms. Level 0 holds the per channel min, max and rms of
+ * each run of baseFrames frames, and each level above summarises factor peaks of the one below, up to a level with
+ * a single peak. A waveform of any width is then drawn from the level closest to its frames per pixel, without
+ * going back to the samples.
+ *
+ * Each level is a run of peaks, each peak holding min, max, rms for every channel in turn. The last peak of a level
+ * may cover fewer frames than the others.
+ */
+public class PeakPyramid
+{
+	public final static int DEFAULT_BASE_FRAMES = 1024;
+	public final static int DEFAULT_FACTOR = 4;
+
+	private final static int READ_FRAMES = 16384;	// Frames read at a time when building from a file
+
+	private final int numChannels;
+	private final long numFrames;
+	private final int baseFrames;
+	private final int factor;
+	private final FloatBuffer[] levels;
+
+	PeakPyramid(int numChannels, long numFrames, int baseFrames, int factor, FloatBuffer[] levels)
+	{
+		this.numChannels = numChannels;
+		this.numFrames = numFrames;
+		this.baseFrames = baseFrames;
+		this.factor = factor;
+		this.levels = levels;
+	}
+
+	/**
+	 * build the pyramid in one pass over a file open for reading, with positional reads so the file's own position
+	 * is left alone
+	 * @param wavFile
+	 * @return
+	 */
+	public static PeakPyramid build(WavFile wavFile) throws IOException, AudioFileException
+	{
+		return build(wavFile, DEFAULT_BASE_FRAMES, DEFAULT_FACTOR);
+	}
+
+	public static PeakPyramid build(WavFile wavFile, int baseFrames, int factor) throws IOException, AudioFileException
+	{
+		Builder builder = new Builder(wavFile.getNumChannels(), baseFrames, factor);
+		float[] samples = new float[READ_FRAMES * wavFile.getNumChannels()];
+		long frame = 0;
+		while (frame < wavFile.getNumFrames()) {
+			int n = wavFile.readFramesAt(frame, samples, 0, READ_FRAMES);
+			if (n == 0) break;
+			builder.add(samples, 0, n);
+			frame += n;
+		}
+		return builder.build();
+	}
+
+	public int getNumChannels()
+	{
+		return numChannels;
+	}
+
+	public long getNumFrames()
+	{
+		return numFrames;
+	}
+
+	public int getBaseFrames()
+	{
+		return baseFrames;
+	}
+
+	public int getFactor()
+	{
+		return factor;
+	}
+
+	public int getNumLevels()
+	{
+		return levels.length;
+	}
+
+	public long getFramesPerPeak(int level)
+	{
+		long frames = baseFrames;
+		for (int i=0 ; i<level ; i++) frames *= factor;
+		return frames;
+	}
+
+	public int getNumPeaks(int level)
+	{
+		return levels[level].limit() / (3 * numChannels);
+	}
+
+	public float getMin(int level, int peak, int channel)
+	{
+		return levels[level].get((peak * numChannels + channel) * 3);
+	}
+
+	public float getMax(int level, int peak, int channel)
+	{
+		return levels[level].get((peak * numChannels + channel) * 3 + 1);
+	}
+
+	public float getRms(int level, int peak, int channel)
+	{
+		return levels[level].get((peak * numChannels + channel) * 3 + 2);
+	}
+
+	FloatBuffer getLevel(int level)
+	{
+		return levels[level];
+	}
+
+	/**
+	 * @param startFrame
+	 * @param endFrame exclusive
+	 * @param pixelWidth
+	 * @return the coarsest level with no more frames per peak than there are frames per pixel, or level 0 if
+	 *         zoomed in further than that
+	 */
+	public int getLevelFor(long startFrame, long endFrame, int pixelWidth)
+	{
+		double framesPerPixel = (double) (endFrame - startFrame) / Math.max(1, pixelWidth);
+		int level = 0;
+		long frames = baseFrames;
+		while (level + 1 < levels.length && frames * factor <= framesPerPixel) {
+			frames *= factor;
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * summarise a range of frames of one channel for drawing, one value per pixel, from the level chosen by
+	 * getLevelFor(). each pixel combines every peak that overlaps its frames
+	 * @param channel
+	 * @param startFrame
+	 * @param endFrame exclusive, clipped to the end of the recording
+	 * @param pixelWidth
+	 * @param min per pixel, or null if not wanted
+	 * @param max per pixel, or null if not wanted
+	 * @param rms per pixel, or null if not wanted
+	 * @return number of pixels filled, 0 if the range is empty
+	 */
+	public int query(int channel, long startFrame, long endFrame, int pixelWidth, float[] min, float[] max, float[] rms)
+	{
+		endFrame = Math.min(endFrame, numFrames);
+		if (startFrame < 0 || endFrame <= startFrame || pixelWidth <= 0) return 0;
+
+		int level = getLevelFor(startFrame, endFrame, pixelWidth);
+		FloatBuffer data = levels[level];
+		long framesPerPeak = getFramesPerPeak(level);
+		double framesPerPixel = (double) (endFrame - startFrame) / pixelWidth;
+		for (int x=0 ; x<pixelWidth ; x++) {
+			long from = startFrame + (long) (x * framesPerPixel);
+			long to = Math.max(from + 1, startFrame + (long) ((x + 1) * framesPerPixel));
+			int first = (int) (from / framesPerPeak);
+			int last = (int) ((Math.min(to, numFrames) - 1) / framesPerPeak);
+
+			float lo = Float.MAX_VALUE;
+			float hi = -Float.MAX_VALUE;
+			double sumSquares = 0;
+			long frames = 0;
+			for (int peak=first ; peak<=last ; peak++) {
+				int i = (peak * numChannels + channel) * 3;
+				lo = Math.min(lo, data.get(i));
+				hi = Math.max(hi, data.get(i + 1));
+				long n = Math.min(framesPerPeak, numFrames - peak * framesPerPeak);
+				double r = data.get(i + 2);
+				sumSquares += r * r * n;
+				frames += n;
+			}
+			if (min != null) min[x] = lo;
+			if (max != null) max[x] = hi;
+			if (rms != null) rms[x] = (float) Math.sqrt(sumSquares / frames);
+		}
+		return pixelWidth;
+	}
+
+	/**
+	 * Builds a pyramid from frames added a block at a time, so it can follow a recording as it is written.
+	 * build() copies every level, a few megabytes for an hour of stereo at the default sizes, so that the pyramid
+	 * it returns stays as it is while more frames are added. A display following a recording should call it at
+	 * its own frame rate, not after every block.
+	 *
+	 * A builder is not thread safe. One shared with the thread adding frames is read by taking a snapshot() under
+	 * the same lock as add(), which only copies the partial peaks, and building from that outside the lock, as
+	 * LevelTap does.
+	 */
+	public static class Builder
+	{
+		private static class Level
+		{
+			final long framesPerPeak;
+			float[] data;
+			int numPeaks;				// complete peaks in data
+
+			// the peak being accumulated
+			final float[] min;
+			final float[] max;
+			final double[] sumSquares;
+			long frames;
+
+			Level(int numChannels, long framesPerPeak)
+			{
+				this.framesPerPeak = framesPerPeak;
+				data = new float[64 * 3 * numChannels];
+				min = new float[numChannels];
+				max = new float[numChannels];
+				sumSquares = new double[numChannels];
+				reset();
+			}
+
+			void reset()
+			{
+				Arrays.fill(min, Float.MAX_VALUE);
+				Arrays.fill(max, -Float.MAX_VALUE);
+				Arrays.fill(sumSquares, 0);
+				frames = 0;
+			}
+		}
+
+		private final int numChannels;
+		private final int baseFrames;
+		private final int factor;
+		private final ArrayList<Level> levels = new ArrayList<Level>();
+		private long numFrames;
+
+		public Builder(int numChannels, int baseFrames, int factor)
+		{
+			this.numChannels = numChannels;
+			this.baseFrames = Math.max(1, baseFrames);
+			this.factor = Math.max(2, factor);
+			levels.add(new Level(numChannels, this.baseFrames));
+		}
+
+		public int getNumChannels()
+		{
+			return numChannels;
+		}
+
+		public long getNumFrames()
+		{
+			return numFrames;
+		}
+
+		/**
+		 * @param samples interleaved normalised samples
+		 * @param offset
+		 * @param numFrames
+		 */
+		public void add(float[] samples, int offset, int numFrames)
+		{
+			Level base = levels.get(0);
+			float[] min = base.min;
+			float[] max = base.max;
+			double[] sumSquares = base.sumSquares;
+			int i = offset;
+			int framesLeft = numFrames;
+			while (framesLeft > 0) {
+				int n = (int) Math.min(framesLeft, baseFrames - base.frames);
+				for (int f=0 ; f<n ; f++) {
+					for (int ch=0 ; ch<numChannels ; ch++) {
+						float v = samples[i++];
+						if (v < min[ch]) min[ch] = v;
+						if (v > max[ch]) max[ch] = v;
+						sumSquares[ch] += v * v;
+					}
+				}
+				base.frames += n;
+				framesLeft -= n;
+				if (base.frames == baseFrames) complete(0);
+			}
+			this.numFrames += numFrames;
+		}
+
+		/**
+		 * append the peak accumulated at a level, and fold it into the level above
+		 */
+		private void complete(int level)
+		{
+			Level l = levels.get(level);
+			append(l, l.min, l.max, l.sumSquares, l.frames, l.numPeaks);
+			l.numPeaks++;
+
+			if (level + 1 == levels.size()) levels.add(new Level(numChannels, l.framesPerPeak * factor));
+			Level up = levels.get(level + 1);
+			fold(up.min, up.max, up.sumSquares, l.min, l.max, l.sumSquares);
+			up.frames += l.frames;
+			l.reset();
+			if (up.frames == up.framesPerPeak) complete(level + 1);
+		}
+
+		private void append(Level l, float[] min, float[] max, double[] sumSquares, long frames, int peak)
+		{
+			int stride = 3 * numChannels;
+			if ((peak + 1) * stride > l.data.length) l.data = Arrays.copyOf(l.data, l.data.length * 2);
+			put(l.data, min, max, sumSquares, frames, peak);
+		}
+
+		private void put(float[] data, float[] min, float[] max, double[] sumSquares, long frames, int peak)
+		{
+			int i = peak * 3 * numChannels;
+			for (int ch=0 ; ch<numChannels ; ch++) {
+				data[i++] = min[ch];
+				data[i++] = max[ch];
+				data[i++] = (float) Math.sqrt(sumSquares[ch] / frames);
+			}
+		}
+
+		private static void fold(float[] min, float[] max, double[] sumSquares, float[] fromMin, float[] fromMax, double[] fromSumSquares)
+		{
+			for (int ch=0 ; ch<min.length ; ch++) {
+				if (fromMin[ch] < min[ch]) min[ch] = fromMin[ch];
+				if (fromMax[ch] > max[ch]) max[ch] = fromMax[ch];
+				sumSquares[ch] += fromSumSquares[ch];
+			}
+		}
+
+		/**
+		 * @return a pyramid of everything added so far, with the partly accumulated peaks included. it is a copy,
+		 * so it stays as it is while more is added
+		 */
+		public PeakPyramid build()
+		{
+			return snapshot().build();
+		}
+
+		/**
+		 * the state of the builder for a later build(). the complete peaks of each level are shared rather than
+		 * copied, as the builder never writes over them, only past them or into a new array when it grows
+		 */
+		Snapshot snapshot()
+		{
+			// the partial peak of each level is its own accumulator plus the partial peak of the level below
+			float[] min = new float[numChannels];
+			float[] max = new float[numChannels];
+			double[] sumSquares = new double[numChannels];
+			Arrays.fill(min, Float.MAX_VALUE);
+			Arrays.fill(max, -Float.MAX_VALUE);
+			long frames = 0;
+
+			int numLevels = levels.size();
+			float[][] data = new float[numLevels][];
+			int[] numPeaks = new int[numLevels];
+			float[][] partial = new float[numLevels][];
+			for (int level=0 ; level<levels.size() ; level++) {
+				Level l = levels.get(level);
+				fold(min, max, sumSquares, l.min, l.max, l.sumSquares);
+				frames += l.frames;
+				data[level] = l.data;
+				numPeaks[level] = l.numPeaks;
+				if (frames > 0) {
+					partial[level] = new float[3 * numChannels];
+					put(partial[level], min, max, sumSquares, frames, 0);
+				}
+				if (l.numPeaks + (frames > 0? 1 : 0) <= 1) {	// anything above only repeats this
+					numLevels = level + 1;
+					break;
+				}
+			}
+			return new Snapshot(numChannels, numFrames, baseFrames, factor, numLevels, data, numPeaks, partial);
+		}
+
+		static class Snapshot
+		{
+			private final int numChannels;
+			private final long numFrames;
+			private final int baseFrames;
+			private final int factor;
+			private final int numLevels;
+			private final float[][] data;		// shared with the builder, only the first numPeaks of each are ours
+			private final int[] numPeaks;
+			private final float[][] partial;	// the partial peak of each level, or null if there isn't one
+
+			Snapshot(int numChannels, long numFrames, int baseFrames, int factor, int numLevels, float[][] data, int[] numPeaks, float[][] partial)
+			{
+				this.numChannels = numChannels;
+				this.numFrames = numFrames;
+				this.baseFrames = baseFrames;
+				this.factor = factor;
+				this.numLevels = numLevels;
+				this.data = data;
+				this.numPeaks = numPeaks;
+				this.partial = partial;
+			}
+
+			PeakPyramid build()
+			{
+				int stride = 3 * numChannels;
+				FloatBuffer[] built = new FloatBuffer[numLevels];
+				for (int level=0 ; level<numLevels ; level++) {
+					int n = numPeaks[level];
+					float[] d = Arrays.copyOf(data[level], (partial[level] != null? n + 1 : n) * stride);
+					if (partial[level] != null) System.arraycopy(partial[level], 0, d, n * stride, stride);
+					built[level] = FloatBuffer.wrap(d);
+				}
+				return new PeakPyramid(numChannels, numFrames, baseFrames, factor, built);
+			}
+		}
+	}
+}
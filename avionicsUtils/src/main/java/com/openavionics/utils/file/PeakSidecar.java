@@ -0,0 +1,165 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * Keeps the PeakPyramid of a wave file in a binary sidecar file next to it, so that it is only computed once. The
+ * sidecar is memory mapped when loaded, and is only trusted while the wave file's length, modification time,
+ * frame count, channel count and valid bits all still match the ones it was written for.
+ *
+ * Layout, all little endian:
+ *   magic, version, wave file length, wave file modification time, number of frames, number of channels,
+ *   valid bits, base frames, factor, number of levels, then the number of peaks of each level, then the peaks of
+ *   each level in turn as floats, as laid out by PeakPyramid
+ */
+public class PeakSidecar
+{
+	public final static String EXTENSION = ".peaks";
+
+	private final static int MAGIC = 0x4B504157;	// "WAPK"
+	private final static int VERSION = 1;
+	private final static int HEADER_SIZE = 52;		// before the peak counts, a multiple of 4 so the floats are aligned
+
+	private PeakSidecar()
+	{
+	}
+
+	public static File sidecarFor(File wav)
+	{
+		return new File(wav.getPath() + EXTENSION);
+	}
+
+	/**
+	 * get the pyramid for a file open for reading, from its sidecar if that is up to date, else by building it and
+	 * writing a new sidecar. failing to write the sidecar, to a read only directory say, is not an error. a file
+	 * opened from a FileChannel has nowhere to keep a sidecar, so its pyramid is just built
+	 * @param wavFile
+	 * @return
+	 */
+	public static PeakPyramid get(WavFile wavFile) throws IOException, AudioFileException
+	{
+		if (wavFile.getFile() == null) return PeakPyramid.build(wavFile);
+		PeakPyramid pyramid = load(wavFile);
+		if (pyramid != null) return pyramid;
+
+		pyramid = PeakPyramid.build(wavFile);
+		try {
+			write(pyramid, wavFile.getFile(), wavFile.getValidBits());
+		} catch (IOException e) {
+			Log.w("peak sidecar", "could not write " + sidecarFor(wavFile.getFile()), e);
+		}
+		return pyramid;
+	}
+
+	/**
+	 * @param wavFile open, or just closed after writing
+	 * @return the pyramid mapped from the sidecar, or null if there is none or it is stale or damaged, or the file
+	 * was opened from a FileChannel, so has no sidecar
+	 */
+	public static PeakPyramid load(WavFile wavFile) throws IOException
+	{
+		File wav = wavFile.getFile();
+		if (wav == null) return null;
+		File sidecar = sidecarFor(wav);
+		if (!sidecar.isFile() || sidecar.length() < HEADER_SIZE) return null;
+
+		MappedByteBuffer map;
+		FileInputStream in = new FileInputStream(sidecar);
+		try {
+			map = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, sidecar.length());
+		} finally {
+			in.close();		// The mapping outlives the stream
+		}
+		map.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) return null;
+		if (map.getLong(8) != wav.length() || map.getLong(16) != wav.lastModified()) return null;
+		long numFrames = map.getLong(24);
+		int numChannels = map.getInt(32);
+		if (numFrames != wavFile.getNumFrames() || numChannels != wavFile.getNumChannels() || map.getInt(36) != wavFile.getValidBits()) return null;
+		int baseFrames = map.getInt(40);
+		int factor = map.getInt(44);
+		int numLevels = map.getInt(48);
+		if (baseFrames < 1 || factor < 2 || numLevels < 1 || HEADER_SIZE + 4L * numLevels > map.capacity()) return null;
+
+		FloatBuffer[] levels = new FloatBuffer[numLevels];
+		long position = HEADER_SIZE + 4L * numLevels;
+		for (int level=0 ; level<numLevels ; level++) {
+			long size = 12L * numChannels * map.getInt(HEADER_SIZE + 4 * level);
+			if (size < 0 || position + size > map.capacity()) return null;
+			map.limit((int) (position + size));
+			map.position((int) position);
+			levels[level] = map.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			position += size;
+		}
+		if (position != map.capacity()) return null;
+		return new PeakPyramid(numChannels, numFrames, baseFrames, factor, levels);
+	}
+
+	/**
+	 * write the sidecar for a wave file, through a temporary file so a reader never sees half of one
+	 * @param pyramid
+	 * @param wav the wave file, complete, so its length and modification time are final
+	 * @param validBits of the wave file
+	 */
+	public static void write(PeakPyramid pyramid, File wav, int validBits) throws IOException
+	{
+		int numLevels = pyramid.getNumLevels();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4 * numLevels).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putLong(wav.length());
+		header.putLong(wav.lastModified());
+		header.putLong(pyramid.getNumFrames());
+		header.putInt(pyramid.getNumChannels());
+		header.putInt(validBits);
+		header.putInt(pyramid.getBaseFrames());
+		header.putInt(pyramid.getFactor());
+		header.putInt(numLevels);
+		for (int level=0 ; level<numLevels ; level++) header.putInt(pyramid.getNumPeaks(level));
+		header.flip();
+
+		File sidecar = sidecarFor(wav);
+		File tmp = new File(sidecar.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			FileChannel c = out.getChannel();
+			while (header.hasRemaining()) c.write(header);
+			ByteBuffer bytes = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			for (int level=0 ; level<numLevels ; level++) {
+				FloatBuffer peaks = pyramid.getLevel(level).duplicate();
+				peaks.rewind();
+				while (peaks.hasRemaining()) {
+					FloatBuffer floats = bytes.asFloatBuffer();
+					int n = Math.min(floats.remaining(), peaks.remaining());
+					FloatBuffer chunk = peaks.slice();
+					chunk.limit(n);
+					floats.put(chunk);
+					peaks.position(peaks.position() + n);
+					bytes.limit(n * 4);
+					while (bytes.hasRemaining()) c.write(bytes);
+					bytes.clear();
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(sidecar)) {
+			sidecar.delete();
+			if (!tmp.renameTo(sidecar)) {
+				tmp.delete();
+				throw new IOException("Could not replace " + sidecar);
+			}
+		}
+	}
+}
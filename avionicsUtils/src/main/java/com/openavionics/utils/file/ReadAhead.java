@@ -0,0 +1,192 @@
+package com.openavionics.utils.file;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Background reader for WavFile's read ahead mode. A thread reads the data chunk into a fixed set of large blocks
+ * ahead of the reader, with positional reads so that it never disturbs the channel's own position. Filled blocks
+ * are handed over in order through a queue, and handed back when they have been used up.
+ *
+ * A restart, after a seek, bumps the generation, so blocks already read for the old position are thrown away
+ * rather than delivered.
+ */
+class ReadAhead implements Runnable
+{
+	static class Block
+	{
+		final ByteBuffer data;
+		long start;			// Offset of the block from the start of the data chunk
+		int length;			// Number of valid bytes in the block
+		int generation;		// Generation the block was read for
+
+		Block(ByteBuffer data)
+		{
+			this.data = data;
+		}
+	}
+
+	private final static Block FAILED = new Block(ByteBuffer.allocate(0));	// Wakes the reader up when the read ahead thread dies
+	private final static Block CLOSED = new Block(ByteBuffer.allocate(0));	// Wakes the read ahead thread up at close()
+
+	private final FileChannel channel;
+	private final long dataStart;
+	private final long dataLength;
+	private final int blockSize;
+	private final BlockingQueue<Block> free;
+	private final BlockingQueue<Block> filled;
+	private final ArrayList<Block> blocks;			// All of them, to give back to the BufferPool at close()
+	private final Thread thread;
+
+	// guarded by this
+	private long nextPosition;
+	private int generation;
+	private boolean closed;
+
+	private volatile IOException error;
+
+	/**
+	 * @param channel
+	 * @param dataStart file position of the data chunk
+	 * @param dataLength length of the data chunk
+	 * @param numBlocks
+	 * @param blockSize should be a whole number of frames, so that frames never straddle blocks
+	 * @param position offset in the data chunk to start reading from
+	 */
+	ReadAhead(FileChannel channel, long dataStart, long dataLength, int numBlocks, int blockSize, long position)
+	{
+		this.channel = channel;
+		this.dataStart = dataStart;
+		this.dataLength = dataLength;
+		this.blockSize = blockSize;
+		this.nextPosition = position;
+
+		free = new ArrayBlockingQueue<Block>(numBlocks + 1);
+		filled = new ArrayBlockingQueue<Block>(numBlocks + 1);
+		blocks = new ArrayList<Block>(numBlocks);
+		for (int i=0 ; i<numBlocks ; i++) blocks.add(new Block(BufferPool.acquire(blockSize, true)));
+		free.addAll(blocks);
+
+		thread = new Thread(this, "WavFile read ahead");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run()
+	{
+		try {
+			while (true) {
+				Block b = free.take();
+				if (b == CLOSED) return;
+				long position;
+				int gen;
+				synchronized (this) {
+					while (!closed && nextPosition >= dataLength) wait();
+					if (closed) return;
+					position = nextPosition;
+					gen = generation;
+					nextPosition += blockSize;
+				}
+
+				b.data.clear();
+				b.data.limit((int) Math.min(blockSize, dataLength - position));
+				while (b.data.hasRemaining()) {
+					if (channel.read(b.data, dataStart + position + b.data.position()) < 0) {
+						throw new EOFException("Not enough data available");
+					}
+				}
+				synchronized (this) {
+					if (closed) return;
+				}
+				b.start = position;
+				b.length = b.data.limit();
+				b.generation = gen;
+				filled.put(b);
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (IOException e) {
+			synchronized (this) {
+				if (closed) return;
+			}
+			error = e;
+			filled.offer(FAILED);
+		}
+	}
+
+	/**
+	 * wait for the block starting at the given offset in the data chunk
+	 * @param position
+	 * @return
+	 * @throws IOException
+	 */
+	Block take(long position) throws IOException
+	{
+		try {
+			while (true) {
+				if (error != null) throw new IOException("Read ahead failed", error);
+				Block b = filled.take();
+				if (b == FAILED) continue;
+				synchronized (this) {
+					if (b.generation == generation) {
+						if (b.start == position) return b;
+						restart(position);
+					}
+				}
+				free.offer(b);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for read ahead");
+		}
+	}
+
+	/**
+	 * hand back a block that has been used up
+	 * @param b
+	 */
+	void recycle(Block b)
+	{
+		free.offer(b);
+	}
+
+	/**
+	 * start reading from a new position, dropping everything read for the old one
+	 * @param position offset in the data chunk
+	 */
+	synchronized void restart(long position)
+	{
+		generation++;
+		nextPosition = position;
+		notifyAll();
+	}
+
+	/**
+	 * stop the thread, and give the blocks back to the BufferPool, so none of them may be used after this. the
+	 * thread is woken rather than interrupted, as an interrupt during a read would close the channel, which may be
+	 * the caller's, or still in use by positional reads, so this waits for any read in progress to finish
+	 */
+	void close()
+	{
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			notifyAll();
+		}
+		free.offer(CLOSED);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;		// the thread may still have a block, so leave them all to the garbage collector
+		}
+		for (Block b: blocks) BufferPool.release(b.data);
+	}
+}
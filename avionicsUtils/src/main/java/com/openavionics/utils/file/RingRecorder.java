@@ -0,0 +1,222 @@
+package com.openavionics.utils.file;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Recorder that sits between a capture callback and a WavFile created for writing. The capture thread pushes
+ * interleaved frames into a preallocated single producer, single consumer ring, which never blocks and never
+ * allocates, and a writer thread drains the ring into WavFile.writeFrames() in large batches.
+ *
+ * If the ring is full, the frames that don't fit are dropped, and counted. The producer and consumer only
+ * communicate through the two ring indices, each of which is only ever advanced by its owner.
+ *
+ * The ring holds either shorts or floats, chosen at construction, and only frames of that type can be pushed.
+ */
+public class RingRecorder implements Runnable
+{
+	private final WavFile wavFile;
+	private final int numChannels;
+	private final int capacity;				// in frames, a power of 2
+	private final int mask;
+	private final int batchFrames;			// frames the writer waits for before writing
+	private final long pollNanos;			// how long the writer sleeps when there isn't a batch ready
+	private final short[] shortRing;
+	private final float[] floatRing;
+
+	private final AtomicLong writeIndex = new AtomicLong();	// total frames pushed, only advanced by the producer
+	private final AtomicLong readIndex = new AtomicLong();	// total frames drained, only advanced by the writer
+
+	// metrics, each written by one thread only
+	private volatile long droppedFrames;	// producer, ring full
+	private volatile int highWaterMark;		// producer
+	private volatile long unwrittenFrames;	// writer, file full
+	private volatile long framesWritten;	// writer
+
+	private volatile boolean running;
+	private volatile Exception error;
+	private Thread thread;
+
+	/**
+	 * @param wavFile already created for writing
+	 * @param capacityFrames size of the ring, rounded up to a power of 2
+	 * @param batchFrames number of frames to gather before writing, no more than the capacity
+	 * @param floatSamples if true the ring holds floats, else shorts
+	 */
+	public RingRecorder(WavFile wavFile, int capacityFrames, int batchFrames, boolean floatSamples)
+	{
+		int c = Integer.highestOneBit(Math.max(1, capacityFrames));
+		if (c < capacityFrames) c <<= 1;
+
+		this.wavFile = wavFile;
+		this.numChannels = wavFile.getNumChannels();
+		this.capacity = c;
+		this.mask = c - 1;
+		this.batchFrames = Math.max(1, Math.min(batchFrames, c));
+		long rate = Math.max(1, wavFile.getSampleRate());
+		this.pollNanos = Math.max(100000L, this.batchFrames * 500000000L / rate);	// half a batch
+		this.shortRing = floatSamples? null : new short[c * numChannels];
+		this.floatRing = floatSamples? new float[c * numChannels] : null;
+	}
+
+	/**
+	 * start the writer thread
+	 */
+	public void start()
+	{
+		if (thread != null) return;
+		running = true;
+		thread = new Thread(this, "RingRecorder writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * stop the writer thread, once it has written everything pushed so far. the WavFile is left open
+	 * @throws IOException if anything went wrong on the writer thread
+	 */
+	public void stop() throws IOException
+	{
+		if (thread != null) {
+			running = false;
+			LockSupport.unpark(thread);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+		if (error != null) throw new IOException("Ring recorder failed", error);
+	}
+
+	/**
+	 * push frames into the ring from the capture thread. never blocks or allocates
+	 * @param frames interleaved samples
+	 * @param offset sample offset into frames
+	 * @param numFrames
+	 * @return number of frames that went into the ring, the rest are dropped
+	 */
+	public int push(short[] frames, int offset, int numFrames)
+	{
+		if (shortRing == null) throw new IllegalStateException("Ring holds float samples");
+		int n = reserve(numFrames);
+		long w = writeIndex.get();
+		int start = (int) (w & mask);
+		int first = Math.min(n, capacity - start);
+		System.arraycopy(frames, offset, shortRing, start * numChannels, first * numChannels);
+		System.arraycopy(frames, offset + first * numChannels, shortRing, 0, (n - first) * numChannels);
+		publish(w + n);
+		return n;
+	}
+
+	public int push(float[] frames, int offset, int numFrames)
+	{
+		if (floatRing == null) throw new IllegalStateException("Ring holds short samples");
+		int n = reserve(numFrames);
+		long w = writeIndex.get();
+		int start = (int) (w & mask);
+		int first = Math.min(n, capacity - start);
+		System.arraycopy(frames, offset, floatRing, start * numChannels, first * numChannels);
+		System.arraycopy(frames, offset + first * numChannels, floatRing, 0, (n - first) * numChannels);
+		publish(w + n);
+		return n;
+	}
+
+	/**
+	 * @return how many of numFrames fit in the ring, counting the rest as dropped
+	 */
+	private int reserve(int numFrames)
+	{
+		int free = capacity - (int) (writeIndex.get() - readIndex.get());
+		if (numFrames <= free) return numFrames;
+		droppedFrames += numFrames - free;
+		return free;
+	}
+
+	private void publish(long w)
+	{
+		writeIndex.lazySet(w);
+		int used = (int) (w - readIndex.get());
+		if (used > highWaterMark) highWaterMark = used;
+	}
+
+	@Override
+	public void run()
+	{
+		try {
+			while (true) {
+				boolean stopping = !running;	// read before looking at the ring, so nothing pushed before stop() is missed
+				long r = readIndex.get();
+				int available = (int) (writeIndex.get() - r);
+				if (available >= batchFrames || (stopping && available > 0)) {
+					drain(r, available);
+				} else if (stopping) {
+					return;
+				} else {
+					LockSupport.parkNanos(this, pollNanos);
+				}
+			}
+		} catch (Exception e) {
+			Log.e("ring recorder", "writer failed", e);
+			error = e;
+		}
+	}
+
+	/**
+	 * write available frames from r on, in at most two contiguous pieces, and hand the space back to the producer
+	 */
+	private void drain(long r, int available) throws IOException, AudioFileException
+	{
+		int start = (int) (r & mask);
+		int first = Math.min(available, capacity - start);
+		int written = write(start, first);
+		if (first < available) written += write(0, available - first);
+		framesWritten += written;
+		unwrittenFrames += available - written;
+		readIndex.lazySet(r + available);
+	}
+
+	private int write(int start, int n) throws IOException, AudioFileException
+	{
+		if (shortRing != null) return wavFile.writeFrames(shortRing, start * numChannels, n);
+		return wavFile.writeFrames(floatRing, start * numChannels, n);
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * @return frames currently waiting in the ring
+	 */
+	public int getQueuedFrames()
+	{
+		return (int) (writeIndex.get() - readIndex.get());
+	}
+
+	/**
+	 * @return frames dropped because the ring was full, or the file was
+	 */
+	public long getDroppedFrames()
+	{
+		return droppedFrames + unwrittenFrames;
+	}
+
+	/**
+	 * @return the most frames that have been waiting in the ring at once
+	 */
+	public int getHighWaterMark()
+	{
+		return highWaterMark;
+	}
+
+	public long getFramesWritten()
+	{
+		return framesWritten;
+	}
+}
@@ -0,0 +1,962 @@
+package com.openavionics.utils.file;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bulk conversion between little endian sample data held in a ByteBuffer and java sample arrays. There is one
+ * subclass per sample layout, chosen when the file is opened, so the per sample work is a single tight loop with
+ * no branching on the format.
+ *
+ * Positions in the ByteBuffer are absolute, and the buffer must be in little endian order. The stride is the
+ * distance in bytes between successive samples read, so interleaved data uses the sample size, and a single
+ * channel of a planar read uses the block align.
+ *
+ * Integer destinations get the raw sample value, floating point destinations get the normalised value,
+ * offset + value / scale, using the offset and scale the WavFile has set up for the file. Encoding is the reverse:
+ * integer sources are written as is, truncated to the sample size, and floating point sources are written as
+ * (long) (scale * (offset + value)), exactly as the sample by sample writes always were.
+ */
+abstract class SampleCodec
+{
+	protected final int bytesPerSample;
+	protected final double offset;
+	protected final double scale;
+	protected final double invScale;
+
+	protected SampleCodec(int bytesPerSample, double offset, double scale)
+	{
+		this.bytesPerSample = bytesPerSample;
+		this.offset = offset;
+		this.scale = scale;
+		this.invScale = 1.0 / scale;
+	}
+
+	/**
+	 * find the codec for the given format and sample size
+	 * @param format one of the WavFile.WAV_FORMAT constants
+	 * @param bytesPerSample
+	 * @param offset
+	 * @param scale
+	 * @return
+	 * @throws AudioFileException if the combination isn't supported
+	 */
+	static SampleCodec forFormat(int format, int bytesPerSample, double offset, double scale) throws AudioFileException
+	{
+		return forFormat(format, bytesPerSample, 0, offset, scale);
+	}
+
+	/**
+	 * find the codec for the given format and sample size, where the valid bits may only fill the top of each
+	 * sample, as in WAVE_FORMAT_EXTENSIBLE
+	 * @param format one of the WavFile.WAV_FORMAT constants
+	 * @param bytesPerSample container size
+	 * @param shift number of unused bits at the bottom of each sample
+	 * @param offset
+	 * @param scale
+	 * @return
+	 * @throws AudioFileException if the combination isn't supported
+	 */
+	static SampleCodec forFormat(int format, int bytesPerSample, int shift, double offset, double scale) throws AudioFileException
+	{
+		if (format == WavFile.WAV_FORMAT_PCM && shift > 0) {
+			switch (bytesPerSample) {
+				case 2: return new Pcm16Justified(shift, offset, scale);
+				case 3: return new Pcm24Justified(shift, offset, scale);
+				case 4: return new Pcm32Justified(shift, offset, scale);
+			}
+			if (bytesPerSample > 4 && bytesPerSample <= 8) return new PcmNJustified(bytesPerSample, shift, offset, scale);
+		} else if (shift > 0) {
+			// Nothing else leaves bits unused
+		} else if (format == WavFile.WAV_FORMAT_PCM) {
+			switch (bytesPerSample) {
+				case 1: return new Pcm8(offset, scale);
+				case 2: return new Pcm16(offset, scale);
+				case 3: return new Pcm24(offset, scale);
+				case 4: return new Pcm32(offset, scale);
+			}
+			if (bytesPerSample <= 8) return new PcmN(bytesPerSample, offset, scale);
+		} else if (format == WavFile.WAV_FORMAT_IEEE_FLOAT) {
+			if (bytesPerSample == 4) return new Float32(offset, scale);
+			if (bytesPerSample == 8) return new Float64(offset, scale);
+		} else if (format == WavFile.WAV_FORMAT_MULAW) {
+			if (bytesPerSample == 1) return G711.MULAW;
+		} else if (format == WavFile.WAV_FORMAT_ALAW) {
+			if (bytesPerSample == 1) return G711.ALAW;
+		}
+		throw new AudioFileException("Wav format " + format + " with " + (bytesPerSample * 8 - shift) + " valid bits in " + bytesPerSample + " byte samples not supported");
+	}
+
+	int getBytesPerSample()
+	{
+		return bytesPerSample;
+	}
+
+	/**
+	 * decode into whichever array type dst is. the dispatch happens once per block, not per sample
+	 */
+	final void decode(ByteBuffer src, int pos, int stride, Object dst, int off, int count)
+	{
+		if (dst instanceof float[]) decode(src, pos, stride, (float[]) dst, off, count);
+		else if (dst instanceof short[]) decode(src, pos, stride, (short[]) dst, off, count);
+		else if (dst instanceof int[]) decode(src, pos, stride, (int[]) dst, off, count);
+		else if (dst instanceof long[]) decode(src, pos, stride, (long[]) dst, off, count);
+		else if (dst instanceof double[]) decode(src, pos, stride, (double[]) dst, off, count);
+		else throw new IllegalArgumentException("Unsupported sample buffer type " + dst.getClass().getSimpleName());
+	}
+
+	abstract void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count);
+	abstract void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count);
+	abstract void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count);
+	abstract void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count);
+	abstract void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count);
+
+	/**
+	 * encode from whichever array type src is. the dispatch happens once per block, not per sample
+	 */
+	final void encode(Object src, int off, ByteBuffer dst, int pos, int stride, int count)
+	{
+		if (src instanceof float[]) encode((float[]) src, off, dst, pos, stride, count);
+		else if (src instanceof short[]) encode((short[]) src, off, dst, pos, stride, count);
+		else if (src instanceof int[]) encode((int[]) src, off, dst, pos, stride, count);
+		else if (src instanceof long[]) encode((long[]) src, off, dst, pos, stride, count);
+		else if (src instanceof double[]) encode((double[]) src, off, dst, pos, stride, count);
+		else throw new IllegalArgumentException("Unsupported sample buffer type " + src.getClass().getSimpleName());
+	}
+
+	abstract void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count);
+	abstract void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count);
+	abstract void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count);
+	abstract void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count);
+	abstract void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count);
+
+	/**
+	 * 1-8 bit pcm, unsigned
+	 */
+	static class Pcm8 extends SampleCodec
+	{
+		Pcm8(double offset, double scale)
+		{
+			super(1, offset, scale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (short) (src.get(pos) & 0xFF);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.get(pos) & 0xFF;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.get(pos) & 0xFF;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (float) (offset + (src.get(pos) & 0xFF) * invScale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = offset + (src.get(pos) & 0xFF) * invScale;
+		}
+
+		@Override
+		void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.put(pos, (byte) src[off]);
+		}
+
+		@Override
+		void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.put(pos, (byte) src[off]);
+		}
+
+		@Override
+		void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.put(pos, (byte) src[off]);
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.put(pos, (byte) (long) (scale * (offset + src[off])));
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.put(pos, (byte) (long) (scale * (offset + src[off])));
+		}
+	}
+
+	/**
+	 * 9-16 bit pcm, signed
+	 */
+	static class Pcm16 extends SampleCodec
+	{
+		Pcm16(double offset, double scale)
+		{
+			super(2, offset, scale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getShort(pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getShort(pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getShort(pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (float) (offset + src.getShort(pos) * invScale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = offset + src.getShort(pos) * invScale;
+		}
+
+		@Override
+		void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putShort(pos, src[off]);
+		}
+
+		@Override
+		void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putShort(pos, (short) src[off]);
+		}
+
+		@Override
+		void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putShort(pos, (short) src[off]);
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putShort(pos, (short) (long) (scale * (offset + src[off])));
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putShort(pos, (short) (long) (scale * (offset + src[off])));
+		}
+	}
+
+	/**
+	 * 17-24 bit pcm, signed
+	 */
+	static class Pcm24 extends SampleCodec
+	{
+		Pcm24(double offset, double scale)
+		{
+			super(3, offset, scale);
+		}
+
+		static int get24(ByteBuffer src, int pos)
+		{
+			return (src.getShort(pos) & 0xFFFF) | (src.get(pos + 2) << 16);
+		}
+
+		static void put24(ByteBuffer dst, int pos, long val)
+		{
+			dst.putShort(pos, (short) val);
+			dst.put(pos + 2, (byte) (val >> 16));
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (short) get24(src, pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = get24(src, pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = get24(src, pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (float) (offset + get24(src, pos) * invScale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = offset + get24(src, pos) * invScale;
+		}
+
+		@Override
+		void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) put24(dst, pos, src[off]);
+		}
+
+		@Override
+		void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) put24(dst, pos, src[off]);
+		}
+
+		@Override
+		void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) put24(dst, pos, src[off]);
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) put24(dst, pos, (long) (scale * (offset + src[off])));
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) put24(dst, pos, (long) (scale * (offset + src[off])));
+		}
+	}
+
+	/**
+	 * 25-32 bit pcm, signed
+	 */
+	static class Pcm32 extends SampleCodec
+	{
+		Pcm32(double offset, double scale)
+		{
+			super(4, offset, scale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (short) src.getInt(pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getInt(pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getInt(pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (float) (offset + src.getInt(pos) * invScale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = offset + src.getInt(pos) * invScale;
+		}
+
+		@Override
+		void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, src[off]);
+		}
+
+		@Override
+		void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, src[off]);
+		}
+
+		@Override
+		void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, (int) src[off]);
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, (int) (long) (scale * (offset + src[off])));
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, (int) (long) (scale * (offset + src[off])));
+		}
+	}
+
+	/**
+	 * 33-64 bit pcm, signed. a byte at a time, but these are rare enough not to need anything more specialised
+	 */
+	static class PcmN extends SampleCodec
+	{
+		PcmN(int bytesPerSample, double offset, double scale)
+		{
+			super(bytesPerSample, offset, scale);
+		}
+
+		long getN(ByteBuffer src, int pos)
+		{
+			int top = bytesPerSample - 1;
+			long val = (long) src.get(pos + top) << (top * 8);
+			for (int b=0 ; b<top ; b++) val |= (long) (src.get(pos + b) & 0xFF) << (b * 8);
+			return val;
+		}
+
+		void putN(ByteBuffer dst, int pos, long val)
+		{
+			for (int b=0 ; b<bytesPerSample ; b++) {
+				dst.put(pos + b, (byte) val);
+				val >>= 8;
+			}
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (short) getN(src, pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (int) getN(src, pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = getN(src, pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (float) (offset + getN(src, pos) * invScale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = offset + getN(src, pos) * invScale;
+		}
+
+		@Override
+		void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) putN(dst, pos, src[off]);
+		}
+
+		@Override
+		void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) putN(dst, pos, src[off]);
+		}
+
+		@Override
+		void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) putN(dst, pos, src[off]);
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) putN(dst, pos, (long) (scale * (offset + src[off])));
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) putN(dst, pos, (long) (scale * (offset + src[off])));
+		}
+	}
+
+	/**
+	 * pcm in 16 bit containers, with the valid bits at the top
+	 */
+	static class Pcm16Justified extends SampleCodec
+	{
+		private final int shift;
+
+		Pcm16Justified(int shift, double offset, double scale)
+		{
+			super(2, offset, scale);
+			this.shift = shift;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (short) (src.getShort(pos) >> shift);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getShort(pos) >> shift;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getShort(pos) >> shift;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (float) (offset + (src.getShort(pos) >> shift) * invScale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = offset + (src.getShort(pos) >> shift) * invScale;
+		}
+
+		@Override
+		void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putShort(pos, (short) ((long) src[off] << shift));
+		}
+
+		@Override
+		void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putShort(pos, (short) ((long) src[off] << shift));
+		}
+
+		@Override
+		void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putShort(pos, (short) (src[off] << shift));
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putShort(pos, (short) ((long) (scale * (offset + src[off])) << shift));
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putShort(pos, (short) ((long) (scale * (offset + src[off])) << shift));
+		}
+	}
+
+	/**
+	 * pcm in 24 bit containers, with the valid bits at the top
+	 */
+	static class Pcm24Justified extends SampleCodec
+	{
+		private final int shift;
+
+		Pcm24Justified(int shift, double offset, double scale)
+		{
+			super(3, offset, scale);
+			this.shift = shift;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (short) (Pcm24.get24(src, pos) >> shift);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = Pcm24.get24(src, pos) >> shift;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = Pcm24.get24(src, pos) >> shift;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (float) (offset + (Pcm24.get24(src, pos) >> shift) * invScale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = offset + (Pcm24.get24(src, pos) >> shift) * invScale;
+		}
+
+		@Override
+		void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) Pcm24.put24(dst, pos, (long) src[off] << shift);
+		}
+
+		@Override
+		void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) Pcm24.put24(dst, pos, (long) src[off] << shift);
+		}
+
+		@Override
+		void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) Pcm24.put24(dst, pos, src[off] << shift);
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) Pcm24.put24(dst, pos, (long) (scale * (offset + src[off])) << shift);
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) Pcm24.put24(dst, pos, (long) (scale * (offset + src[off])) << shift);
+		}
+	}
+
+	/**
+	 * pcm in 32 bit containers, with the valid bits at the top, such as 24 in 32
+	 */
+	static class Pcm32Justified extends SampleCodec
+	{
+		private final int shift;
+
+		Pcm32Justified(int shift, double offset, double scale)
+		{
+			super(4, offset, scale);
+			this.shift = shift;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (short) (src.getInt(pos) >> shift);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getInt(pos) >> shift;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getInt(pos) >> shift;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (float) (offset + (src.getInt(pos) >> shift) * invScale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = offset + (src.getInt(pos) >> shift) * invScale;
+		}
+
+		@Override
+		void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, (int) ((long) src[off] << shift));
+		}
+
+		@Override
+		void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, (int) ((long) src[off] << shift));
+		}
+
+		@Override
+		void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, (int) (src[off] << shift));
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, (int) ((long) (scale * (offset + src[off])) << shift));
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, (int) ((long) (scale * (offset + src[off])) << shift));
+		}
+	}
+
+	/**
+	 * pcm in 40-64 bit containers, with the valid bits at the top
+	 */
+	static class PcmNJustified extends PcmN
+	{
+		private final int shift;
+
+		PcmNJustified(int bytesPerSample, int shift, double offset, double scale)
+		{
+			super(bytesPerSample, offset, scale);
+			this.shift = shift;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (short) (getN(src, pos) >> shift);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (int) (getN(src, pos) >> shift);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = getN(src, pos) >> shift;
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (float) (offset + (getN(src, pos) >> shift) * invScale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = offset + (getN(src, pos) >> shift) * invScale;
+		}
+
+		@Override
+		void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) putN(dst, pos, (long) src[off] << shift);
+		}
+
+		@Override
+		void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) putN(dst, pos, (long) src[off] << shift);
+		}
+
+		@Override
+		void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) putN(dst, pos, src[off] << shift);
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) putN(dst, pos, (long) (scale * (offset + src[off])) << shift);
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) putN(dst, pos, (long) (scale * (offset + src[off])) << shift);
+		}
+	}
+
+	/**
+	 * 32 bit IEEE float. Integer destinations and sources get the raw bits, as the sample by sample reads and
+	 * writes always did
+	 */
+	static class Float32 extends Pcm32
+	{
+		Float32(double offset, double scale)
+		{
+			super(offset, scale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getFloat(pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getFloat(pos);
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, Float.floatToRawIntBits(src[off]));
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putInt(pos, Float.floatToRawIntBits((float) src[off]));
+		}
+	}
+
+	/**
+	 * 64 bit IEEE float, so double precision data goes to disk and back without being requantised. Integer
+	 * destinations and sources get the raw bits, as with Float32
+	 */
+	static class Float64 extends SampleCodec
+	{
+		Float64(double offset, double scale)
+		{
+			super(8, offset, scale);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (short) src.getLong(pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (int) src.getLong(pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getLong(pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = (float) src.getDouble(pos);
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = src.getDouble(pos);
+		}
+
+		@Override
+		void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putLong(pos, src[off]);
+		}
+
+		@Override
+		void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putLong(pos, src[off]);
+		}
+
+		@Override
+		void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putLong(pos, src[off]);
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putLong(pos, Double.doubleToRawLongBits(src[off]));
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.putLong(pos, Double.doubleToRawLongBits(src[off]));
+		}
+	}
+
+	/**
+	 * 8 bit ITU-T G.711 µ-law or A-law, all by table lookup. Integer destinations and sources are 16 bit linear
+	 * values, and floating point ones are those normalised by 32768, whatever offset and scale the file has. Encoding
+	 * goes through a table of every 14 bit value, which is all the resolution either law keeps, and clips anything
+	 * out of 16 bit range first
+	 */
+	static class G711 extends SampleCodec
+	{
+		// Segment ends, which have to be set before the instances are built
+		private final static int[] SEG_UEND = {0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF};
+		private final static int[] SEG_AEND = {0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF};
+
+		final static G711 MULAW = new G711(true);
+		final static G711 ALAW = new G711(false);
+
+		private final short[] linear = new short[256];
+		private final float[] linearF = new float[256];
+		private final double[] linearD = new double[256];
+		private final byte[] compress = new byte[1 << 14];	// Indexed by the top 14 bits of a 16 bit value
+
+		private G711(boolean mulaw)
+		{
+			super(1, 0, 32768);
+			for (int i=0 ; i<256 ; i++) {
+				linear[i] = (short) (mulaw? ulaw2linear(i) : alaw2linear(i));
+				linearF[i] = (float) (linear[i] * invScale);
+				linearD[i] = linear[i] * invScale;
+			}
+			for (int i=0 ; i<compress.length ; i++) {
+				int pcm = (i << 18) >> 16;		// Sign extend
+				compress[i] = (byte) (mulaw? linear2ulaw(pcm) : linear2alaw(pcm));
+			}
+		}
+
+		private static int segment(int val, int[] ends)
+		{
+			for (int i=0 ; i<ends.length ; i++) if (val <= ends[i]) return i;
+			return ends.length;
+		}
+
+		/**
+		 * as the ITU-T G.191 reference implementation, only used to build the tables
+		 */
+		private static int linear2ulaw(int pcm)
+		{
+			int abs = (pcm < 0)? ((~pcm) >> 2) + 33 : (pcm >> 2) + 33;	// Biased 14 bit magnitude
+			if (abs > 0x1FFF) abs = 0x1FFF;
+			int seg = segment(abs, SEG_UEND) + 1;
+			int ulaw = ((8 - seg) << 4) | (0xF - ((abs >> seg) & 0xF));
+			return (pcm >= 0)? ulaw | 0x80 : ulaw;
+		}
+
+		private static int ulaw2linear(int u)
+		{
+			u = ~u;
+			int t = ((u & 0xF) << 3) + 0x84;
+			t <<= (u & 0x70) >> 4;
+			return (u & 0x80) != 0? 0x84 - t : t - 0x84;
+		}
+
+		private static int linear2alaw(int pcm)
+		{
+			int mask;
+			pcm >>= 3;
+			if (pcm >= 0) {
+				mask = 0xD5;
+			} else {
+				mask = 0x55;
+				pcm = -pcm - 1;
+			}
+			int seg = segment(pcm, SEG_AEND);
+			if (seg >= 8) return 0x7F ^ mask;
+			int aval = seg << 4;
+			aval |= (seg < 2)? (pcm >> 1) & 0xF : (pcm >> seg) & 0xF;
+			return aval ^ mask;
+		}
+
+		private static int alaw2linear(int a)
+		{
+			a ^= 0x55;
+			int t = (a & 0xF) << 4;
+			int seg = (a & 0x70) >> 4;
+			if (seg == 0) {
+				t += 8;
+			} else {
+				t += 0x108;
+				if (seg > 1) t <<= seg - 1;
+			}
+			return (a & 0x80) != 0? t : -t;
+		}
+
+		private byte compress(long pcm)
+		{
+			if (pcm > Short.MAX_VALUE) pcm = Short.MAX_VALUE;
+			else if (pcm < Short.MIN_VALUE) pcm = Short.MIN_VALUE;
+			return compress[((int) pcm >> 2) & 0x3FFF];
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, short[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = linear[src.get(pos) & 0xFF];
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, int[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = linear[src.get(pos) & 0xFF];
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, long[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = linear[src.get(pos) & 0xFF];
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, float[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = linearF[src.get(pos) & 0xFF];
+		}
+
+		@Override
+		void decode(ByteBuffer src, int pos, int stride, double[] dst, int off, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst[off] = linearD[src.get(pos) & 0xFF];
+		}
+
+		@Override
+		void encode(short[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.put(pos, compress[(src[off] >> 2) & 0x3FFF]);
+		}
+
+		@Override
+		void encode(int[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.put(pos, compress(src[off]));
+		}
+
+		@Override
+		void encode(long[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.put(pos, compress(src[off]));
+		}
+
+		@Override
+		void encode(float[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.put(pos, compress((long) (scale * src[off])));
+		}
+
+		@Override
+		void encode(double[] src, int off, ByteBuffer dst, int pos, int stride, int count) {
+			for (int end=off+count ; off<end ; off++, pos+=stride) dst.put(pos, compress((long) (scale * src[off])));
+		}
+	}
+}
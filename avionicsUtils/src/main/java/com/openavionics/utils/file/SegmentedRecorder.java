@@ -0,0 +1,335 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records one continuous stream of frames as a series of wave files, <baseName>_0000.wav, <baseName>_0001.wav and
+ * so on, each of which but the last holds exactly the same number of frames, so they join back up sample for sample.
+ *
+ * A background thread keeps the next segment ready: the file created, preallocated to its full length with
+ * RandomAccessFile.setLength() and its header written, and it closes each finished segment too. Rotating is then
+ * just switching to the one that is ready, so none of the file system work falls on the thread doing the writing.
+ *
+ * Segments are always written in WavFile's durable mode, with the header brought up to date as the data goes out,
+ * by default every DEFAULT_HEADER_COMMIT_MILLIS. A preallocated segment whose header was only written at close
+ * would, after a crash, claim either no data or the full length, padded with zeros, rather than what it holds.
+ */
+public class SegmentedRecorder
+{
+	public final static long DEFAULT_HEADER_COMMIT_MILLIS = 1000;
+
+	private static class Segment
+	{
+		final File file;
+		final RandomAccessFile raf;
+		final WavFile wav;
+
+		Segment(File file, RandomAccessFile raf, WavFile wav)
+		{
+			this.file = file;
+			this.raf = raf;
+			this.wav = wav;
+		}
+	}
+
+	private final File dir;
+	private final String baseName;
+	private final int numChannels;
+	private final int validBits;
+	private final long sampleRate;
+	private final int format;
+	private final long segmentFrames;
+
+	private int writeBehindBuffers;
+	private long headerCommitMillis = DEFAULT_HEADER_COMMIT_MILLIS;
+	private long headerCommitBytes;
+
+	private ExecutorService background;
+	private Segment current;
+	private Future<Segment> next;
+	private long segmentFramesWritten;
+	private long framesWritten;
+	private int numSegments;
+	private final List<File> finished = new ArrayList<File>();	// guarded by itself
+	private volatile IOException error;
+
+	/**
+	 * @param dir
+	 * @param baseName
+	 * @param numChannels
+	 * @param validBits
+	 * @param sampleRate
+	 * @param format
+	 * @param segmentSeconds longest a segment may last, 0 for no limit
+	 * @param segmentBytes largest a segment file may be, 0 for no limit
+	 * @throws AudioFileException if there is no limit, or it is less than a frame
+	 */
+	public SegmentedRecorder(File dir, String baseName, int numChannels, int validBits, long sampleRate, int format, double segmentSeconds, long segmentBytes) throws AudioFileException
+	{
+		this.dir = dir;
+		this.baseName = baseName;
+		this.numChannels = numChannels;
+		this.validBits = validBits;
+		this.sampleRate = sampleRate;
+		this.format = format;
+
+		int blockAlign = (validBits + 7) / 8 * numChannels;
+		long frames = Long.MAX_VALUE;
+		if (segmentSeconds > 0) frames = (long) (segmentSeconds * sampleRate);
+		if (segmentBytes > 0) frames = Math.min(frames, (segmentBytes - WavHeader.MAX_LENGTH - 1) / blockAlign);
+		if (frames == Long.MAX_VALUE) throw new AudioFileException("Segments need a length or size limit");
+		if (frames < 1) throw new AudioFileException("Segments must hold at least one frame");
+		this.segmentFrames = frames;
+	}
+
+	/**
+	 * write out each segment on a background thread, as WavFile.setWriteBehind(). takes effect at start()
+	 */
+	public void setWriteBehind(int numBuffers)
+	{
+		this.writeBehindBuffers = numBuffers;
+	}
+
+	/**
+	 * how often the header of each segment is brought up to date as it is written, as WavFile.setHeaderCommit().
+	 * it can't be turned off, as the segments are preallocated, so both 0 gives DEFAULT_HEADER_COMMIT_MILLIS. takes
+	 * effect at start()
+	 */
+	public void setHeaderCommit(long intervalMillis, long intervalBytes)
+	{
+		if (intervalMillis <= 0 && intervalBytes <= 0) intervalMillis = DEFAULT_HEADER_COMMIT_MILLIS;
+		this.headerCommitMillis = Math.max(0, intervalMillis);
+		this.headerCommitBytes = Math.max(0, intervalBytes);
+	}
+
+	/**
+	 * create the first segment, waiting for it, and start preparing the second
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	public void start() throws IOException, AudioFileException
+	{
+		if (background != null) throw new IOException("SegmentedRecorder already started");
+		background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "SegmentedRecorder " + baseName);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		numSegments = 0;
+		framesWritten = 0;
+		next = prepare();
+		rotate();
+	}
+
+	public long getSegmentFrames()
+	{
+		return segmentFrames;
+	}
+
+	public long getFramesWritten()
+	{
+		return framesWritten;
+	}
+
+	/**
+	 * @return the segment being written
+	 */
+	public File getCurrentFile()
+	{
+		return current != null? current.file : null;
+	}
+
+	/**
+	 * @return segments that have been finished and closed, in order
+	 */
+	public List<File> getFinishedFiles()
+	{
+		synchronized (finished) {
+			return new ArrayList<File>(finished);
+		}
+	}
+
+	public int writeFrames(short[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		return write(sampleBuffer, offset, numFramesToWrite);
+	}
+
+	public int writeFrames(int[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		return write(sampleBuffer, offset, numFramesToWrite);
+	}
+
+	public int writeFrames(long[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		return write(sampleBuffer, offset, numFramesToWrite);
+	}
+
+	public int writeFrames(float[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		return write(sampleBuffer, offset, numFramesToWrite);
+	}
+
+	public int writeFrames(double[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		return write(sampleBuffer, offset, numFramesToWrite);
+	}
+
+	/**
+	 * write interleaved frames, splitting them across segments where one fills up
+	 * @param offset in samples, as WavFile
+	 */
+	private int write(Object sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		if (current == null) throw new IOException("SegmentedRecorder not started");
+		if (error != null) throw new IOException("Closing a segment failed", error);
+		int framesLeft = numFramesToWrite;
+		while (framesLeft > 0) {
+			if (segmentFramesWritten == segmentFrames) rotate();
+			int n = (int) Math.min(framesLeft, segmentFrames - segmentFramesWritten);
+			WavFile w = current.wav;
+			if (sampleBuffer instanceof short[]) {
+				w.writeFrames((short[]) sampleBuffer, offset, n);
+			} else if (sampleBuffer instanceof int[]) {
+				w.writeFrames((int[]) sampleBuffer, offset, n);
+			} else if (sampleBuffer instanceof long[]) {
+				w.writeFrames((long[]) sampleBuffer, offset, n);
+			} else if (sampleBuffer instanceof float[]) {
+				w.writeFrames((float[]) sampleBuffer, offset, n);
+			} else {
+				w.writeFrames((double[]) sampleBuffer, offset, n);
+			}
+			offset += n * numChannels;
+			framesLeft -= n;
+			segmentFramesWritten += n;
+			framesWritten += n;
+		}
+		return numFramesToWrite;
+	}
+
+	/**
+	 * hand the full segment to the background thread to close, switch to the one it has ready, and have it
+	 * start on the one after
+	 */
+	private void rotate() throws IOException, AudioFileException
+	{
+		Segment ready;
+		try {
+			ready = next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the next segment");
+		} catch (ExecutionException e) {
+			throw rethrow(e);
+		}
+		if (current != null) finish(current);
+		current = ready;
+		segmentFramesWritten = 0;
+		next = prepare();
+	}
+
+	private Future<Segment> prepare()
+	{
+		final File file = new File(dir, String.format(Locale.US, "%s_%04d.wav", baseName, numSegments++));
+		return background.submit(new Callable<Segment>() {
+			@Override
+			public Segment call() throws IOException, AudioFileException
+			{
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(WavHeader.MAX_LENGTH + segmentFrames * ((validBits + 7) / 8 * numChannels) + 1);
+					WavFile wav = new WavFile();
+					wav.setWriteBehind(writeBehindBuffers);
+					wav.setHeaderCommit(headerCommitMillis, headerCommitBytes);
+					wav.create(raf.getChannel(), numChannels, segmentFrames, validBits, sampleRate, format);
+					return new Segment(file, raf, wav);
+				} catch (IOException e) {
+					raf.close();
+					throw e;
+				} catch (AudioFileException e) {
+					raf.close();
+					throw e;
+				}
+			}
+		});
+	}
+
+	/**
+	 * close a segment on the background thread, which cuts it to length, keeping the first failure to report
+	 */
+	private void finish(final Segment segment)
+	{
+		background.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					try {
+						segment.wav.close();
+					} finally {
+						segment.raf.close();
+					}
+					synchronized (finished) {
+						finished.add(segment.file);
+					}
+				} catch (IOException e) {
+					if (error == null) error = e;
+				}
+			}
+		});
+	}
+
+	/**
+	 * close the last segment, cut to the frames written, and remove the one prepared after it
+	 * @throws IOException if this or closing an earlier segment failed
+	 * @throws AudioFileException
+	 */
+	public void close() throws IOException, AudioFileException
+	{
+		if (background == null) return;
+		try {
+			if (current != null) finish(current);
+			current = null;
+			try {
+				Segment unused = next.get();
+				unused.wav.close();
+				unused.raf.close();
+				unused.file.delete();
+			} catch (ExecutionException e) {
+				// nothing was made
+			}
+			background.shutdown();
+			background.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted closing segments");
+		} finally {
+			background = null;
+		}
+		if (error != null) throw new IOException("Closing a segment failed", error);
+	}
+
+	private static IOException rethrow(ExecutionException e) throws AudioFileException
+	{
+		Throwable cause = e.getCause();
+		if (cause instanceof AudioFileException) throw (AudioFileException) cause;
+		if (cause instanceof IOException) return (IOException) cause;
+		return new IOException("Preparing the next segment failed", cause);
+	}
+}
@@ -0,0 +1,298 @@
+package com.openavionics.utils.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Catalog of the wave files under a directory tree, with what WavInfo.probe() says about each, kept in a file
+ * between runs. update() walks the tree on a pool of threads, so the latency of listing directories and reading
+ * headers overlaps, and only probes files that are new or whose length or modification time has changed. Links
+ * to directories are followed, but each directory is only walked once, however many ways there are to reach it.
+ */
+public class WavCatalog
+{
+	private final static int MAGIC = 0x54434157;	// "WACT"
+	private final static int VERSION = 2;			// 2 added the container size and channel layout
+
+	public static class Entry
+	{
+		private final WavInfo info;
+		private final long lastModified;
+
+		Entry(WavInfo info, long lastModified)
+		{
+			this.info = info;
+			this.lastModified = lastModified;
+		}
+
+		public WavInfo getInfo()
+		{
+			return info;
+		}
+
+		public String getPath()
+		{
+			return info.getFile().getPath();
+		}
+
+		public long getSize()
+		{
+			return info.getFileLength();
+		}
+
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * @param catalogFile
+	 * @return the catalog saved in the file, or an empty one if there is none, it can't be read, or it was saved by
+	 * another version, so that update() probes everything again
+	 */
+	public static WavCatalog load(File catalogFile)
+	{
+		WavCatalog catalog = new WavCatalog();
+		if (!catalogFile.isFile()) return catalog;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(catalogFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) return catalog;
+				int count = in.readInt();
+				for (int i=0 ; i<count ; i++) {
+					File file = new File(in.readUTF());
+					long size = in.readLong();
+					long lastModified = in.readLong();
+					int format = in.readInt();
+					int numChannels = in.readInt();
+					long sampleRate = in.readLong();
+					int validBits = in.readInt();
+					int blockAlign = in.readInt();
+					int bytesPerSample = in.readInt();
+					boolean extensible = in.readBoolean();
+					int channelMask = in.readInt();
+					long dataStart = in.readLong();
+					long numFrames = in.readLong();
+					WavInfo info = new WavInfo(file, size, format, numChannels, sampleRate, validBits, blockAlign, bytesPerSample, extensible, channelMask, dataStart, numFrames);
+					catalog.entries.put(file.getPath(), new Entry(info, lastModified));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w("wav catalog", "could not read " + catalogFile + ", starting again", e);
+			catalog.entries.clear();
+		}
+		return catalog;
+	}
+
+	/**
+	 * write the catalog, through a temporary file so a crash never leaves half of one
+	 * @param catalogFile
+	 * @throws IOException
+	 */
+	public void save(File catalogFile) throws IOException
+	{
+		File tmp = new File(catalogFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			ArrayList<Entry> list = new ArrayList<Entry>(entries.values());
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(list.size());
+			for (Entry e: list) {
+				WavInfo info = e.info;
+				out.writeUTF(e.getPath());
+				out.writeLong(info.getFileLength());
+				out.writeLong(e.lastModified);
+				out.writeInt(info.getFormat());
+				out.writeInt(info.getNumChannels());
+				out.writeLong(info.getSampleRate());
+				out.writeInt(info.getValidBits());
+				out.writeInt(info.getBlockAlign());
+				out.writeInt(info.getBytesPerSample());
+				out.writeBoolean(info.isExtensible());
+				out.writeInt(info.getChannelMask());
+				out.writeLong(info.getDataStart());
+				out.writeLong(info.getNumFrames());
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(catalogFile)) {
+			catalogFile.delete();
+			if (!tmp.renameTo(catalogFile)) {
+				tmp.delete();
+				throw new IOException("Could not replace " + catalogFile);
+			}
+		}
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	public Collection<Entry> getEntries()
+	{
+		return Collections.unmodifiableCollection(entries.values());
+	}
+
+	public Entry get(File file)
+	{
+		return entries.get(file.getPath());
+	}
+
+	/**
+	 * bring the catalog up to date with a directory tree. files that WavFile.valid() accepts are probed if they are
+	 * new or have changed, entries for files under root that have gone are dropped, and files that can't be
+	 * probed are left out, to be tried again next time
+	 * @param root
+	 * @param numThreads
+	 * @return number of files probed
+	 * @throws InterruptedException
+	 */
+	public int update(File root, int numThreads) throws InterruptedException
+	{
+		Scan scan = new Scan(numThreads);
+		try {
+			scan.submit(scan.new Walk(root));
+			scan.await();
+		} finally {
+			scan.pool.shutdownNow();
+		}
+
+		String prefix = root.getPath() + File.separator;
+		Iterator<String> it = entries.keySet().iterator();
+		while (it.hasNext()) {
+			String path = it.next();
+			if (path.startsWith(prefix) && !scan.seen.contains(path)) it.remove();
+		}
+		return scan.probed.get();
+	}
+
+	/**
+	 * one run of update(). every task is counted in when submitted and out when done, and the scan is over when
+	 * none are left
+	 */
+	private class Scan
+	{
+		final ExecutorService pool;
+		final WavFile checker = new WavFile();	// Only for valid(), which has no state
+		final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final Set<String> visited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());	// Canonical paths of directories walked
+		final AtomicInteger probed = new AtomicInteger();
+		private int pending;					// guarded by this
+
+		Scan(int numThreads)
+		{
+			pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		}
+
+		synchronized void submit(final Runnable task)
+		{
+			pending++;
+			pool.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					try {
+						task.run();
+					} finally {
+						done();
+					}
+				}
+			});
+		}
+
+		private synchronized void done()
+		{
+			if (--pending == 0) notifyAll();
+		}
+
+		synchronized void await() throws InterruptedException
+		{
+			while (pending > 0) wait();
+		}
+
+		class Walk implements Runnable
+		{
+			private final File dir;
+
+			Walk(File dir)
+			{
+				this.dir = dir;
+			}
+
+			@Override
+			public void run()
+			{
+				// isDirectory() follows links, so a link back up the tree would otherwise be walked for ever, and
+				// two links to one directory would list its files twice
+				try {
+					if (!visited.add(dir.getCanonicalPath())) return;
+				} catch (IOException e) {
+					Log.d("wav catalog", "could not resolve " + dir, e);
+					return;
+				}
+				File[] files = dir.listFiles();
+				if (files == null) return;
+				for (File f: files) {
+					if (f.isDirectory()) {
+						submit(new Walk(f));
+					} else if (checker.valid(f)) {
+						seen.add(f.getPath());
+						Entry e = entries.get(f.getPath());
+						if (e == null || e.getSize() != f.length() || e.lastModified != f.lastModified()) submit(new Probe(f));
+					}
+				}
+			}
+		}
+
+		class Probe implements Runnable
+		{
+			private final File file;
+
+			Probe(File file)
+			{
+				this.file = file;
+			}
+
+			@Override
+			public void run()
+			{
+				long lastModified = file.lastModified();
+				try {
+					entries.put(file.getPath(), new Entry(WavInfo.probe(file), lastModified));
+				} catch (IOException e) {
+					Log.d("wav catalog", "could not probe " + file, e);
+					entries.remove(file.getPath());
+				} catch (AudioFileException e) {
+					Log.d("wav catalog", "could not probe " + file, e);
+					entries.remove(file.getPath());
+				}
+				probed.incrementAndGet();
+			}
+		}
+	}
+}
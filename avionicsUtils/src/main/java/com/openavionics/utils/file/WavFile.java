@@ -5,6 +5,10 @@ package com.openavionics.utils.file;
  */
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
 import android.os.Parcelable;
@@ -12,12 +16,21 @@ import android.util.Log;
 
 public class WavFile implements AudioFile
 {
-	private final static int BUFFER_SIZE = 4096;
-
-	private final static int FMT_CHUNK_ID = 0x20746D66;
-	private final static int DATA_CHUNK_ID = 0x61746164;
-	private final static int RIFF_CHUNK_ID = 0x46464952;
-	private final static int RIFF_TYPE_ID = 0x45564157;
+	private final static int DEFAULT_BUFFER_SIZE = 4096;
+	private final static int MIN_BUFFER_SIZE = 128;		// Room for any of the header chunks
+	private final static int HEADER_BLOCK_SIZE = 4096;	// Read from the front of a file in one go by open(), for the header
+	private final static long MAP_WINDOW_SIZE = 1 << 26;	// Bytes of the data chunk mapped at a time in memory mapped mode
+	private final static int POSITIONAL_BUFFER_SIZE = 1 << 16;	// Size of each thread's buffer for readFramesAt()
+	private final static int PLANAR_BLOCK_SIZE = 1 << 14;		// Most bytes of frames a planar read or write goes through a channel at a time, so the block stays in the L1 cache
+
+	final static int FMT_CHUNK_ID = 0x20746D66;
+	final static int DATA_CHUNK_ID = 0x61746164;
+	final static int RIFF_CHUNK_ID = 0x46464952;
+	final static int RIFF_TYPE_ID = 0x45564157;
+	final static int RF64_CHUNK_ID = 0x34364652;	// RIFF, with 64 bit sizes in a ds64 chunk
+	final static int BW64_CHUNK_ID = 0x34365742;	// The same, as EBU Tech 3392 names it
+	final static int DS64_CHUNK_ID = 0x34367364;
+	final static int JUNK_CHUNK_ID = 0x4B4E554A;
 
 	public final static int WAV_FORMAT_PCM = 0x0001; 			// PCM
 	public final static int WAV_FORMAT_IEEE_FLOAT = 0x0003;	// IEEE float
@@ -47,11 +60,12 @@ An extended Format chunk is used for non-PCM data. The cbSize field gives the si
 	private IOState ioState;				// Specifies the IO State of the Wav File (used for snaity checking)
 	private int bytesPerSample;			// Number of bytes required to store a single sample
 	private long numFrames;					// Number of frames within the data section
-	private FileOutputStream oStream;	// Output stream used for writting data
-	private FileInputStream iStream;		// Input stream used for reading data
-	private double doubleScale;				// Scaling factor used for int <-> float conversion				
-	private double doubleOffset;			// Offset factor used for int <-> float conversion				
-	private boolean wordAlignAdjust;		// Specify if an extra byte at the end of the data chunk is required for word alignment
+	private FileChannel outChannel;			// Channel used for writting data
+	private FileChannel inChannel;			// Channel used for reading data
+	private boolean ownChannel;				// The channel was opened here, from file, so is closed here too
+	private boolean reserveDs64;			// The header has room for a ds64 chunk, as the data might pass 4GB
+	private long fileLength;				// Length and modification time of the file when opened for reading, which
+	private long lastModified;				// tell one version of it from another
 
 	// Wav Header
 	private int numChannels;				// 2 bytes unsigned, 0x0001 (1) to 0xFFFF (65,535)
@@ -59,22 +73,67 @@ An extended Format chunk is used for non-PCM data. The cbSize field gives the si
 													// Although a java int is 4 bytes, it is signed, so need to use a long
 	private int blockAlign;					// 2 bytes unsigned, 0x0001 (1) to 0xFFFF (65,535)
 	private int validBits;					// 2 bytes unsigned, 0x0002 (2) to 0xFFFF (65,535)
-	private int format;						// one of the WAVE_FORMAT.. constants
+	private int format;						// one of the WAVE_FORMAT.. constants, the SubFormat's for WAVE_FORMAT_EXTENSIBLE
+	private boolean extensible;				// The header is WAVE_FORMAT_EXTENSIBLE, whose containers may be bigger than validBits need
+	private int channelMask;				// Speaker positions of WAVE_FORMAT_EXTENSIBLE, 0 if not given
+
+	// WAVE_FORMAT_EXTENSIBLE for create()
+	private int extensibleContainerBits;	// Size of each sample, at least validBits, 0 for a plain header
+	private int extensibleChannelMask;
 
 	// Buffering
-	private byte[] buffer;					// Local buffer used for IO
+	private static volatile int defaultBufferSize = DEFAULT_BUFFER_SIZE;
+	private int bufferSize;					// Size of the local buffer for this file, 0 for the default
+	private byte[] buffer;					// Local buffer used for IO, borrowed from the BufferPool while open
+	private ByteBuffer bufferView;			// Little endian view of the local buffer, for the sample codec
+	private ByteBuffer block;				// Where samples are currently decoded from: bufferView, or the mapped window
 	private int bufferPointer;				// Points to the current position in local buffer
 	private int bytesRead;					// Bytes read after last read into local buffer
 	private long frameCounter;				// Current number of frames read or written
+	private SampleCodec codec;				// Bulk sample conversion for the current format
+	private float[] floatScratch;			// Staging for FloatBuffers that have no backing array
 	
 	private long dataStart;
 
+	private long blockStart;				// Offset from the start of the data chunk of a mapped window or read ahead block
+
+	// Positional reads, one buffer per thread shared by all files, as each read is complete before it returns
+	private final static ThreadLocal<ByteBuffer> positionalBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue()
+		{
+			return ByteBuffer.allocateDirect(POSITIONAL_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	};
+
+	// Memory mapped reading
+	private boolean memoryMapped;			// Read the data chunk through a memory mapping rather than the input stream
+	private MappedByteBuffer mappedData;	// Currently mapped window of the data chunk
+
+	// Read ahead
+	private int readAheadBlocks;			// Number of blocks read ahead on a background thread, 0 to read on demand
+	private int readAheadBlockSize;			// Size in bytes of the read ahead blocks
+	private ReadAhead readAhead;
+	private ReadAhead.Block readAheadBlock;	// Read ahead block currently being decoded
+
+	// Write behind
+	private int writeBehindBuffers;			// Number of buffers to rotate through with writes on a background thread, 0 for synchronous writes
+	private WriteBehind writeBehind;
+	private WriteBehind.Buffer writeBehindBuffer;	// Write behind buffer currently being filled, which buffer is set to
+
+	// Durable mode
+	private long headerCommitMillis;		// Patch the header in place at least this often while writing, 0 for no time limit
+	private long headerCommitBytes;			// and after this much data, 0 for no byte limit
+	private HeaderCommit headerCommit;
+
+	// Peaks and levels
+	private LevelTap levelTap;				// Sees everything written, null for none
+
 	/**
 	 * 	Don't instantiate WavFile directly, must either use create() or open()
 	 */
 	public WavFile()
 	{
-		buffer = new byte[BUFFER_SIZE];
 		ioState = IOState.CLOSED;
 		dataStart = 0;
 	}
@@ -84,6 +143,22 @@ An extended Format chunk is used for non-PCM data. The cbSize field gives the si
 		return file;
 	}
 
+	/**
+	 * length of the file or channel when it was opened for reading
+	 */
+	long getFileLength()
+	{
+		return fileLength;
+	}
+
+	/**
+	 * modification time of the file when it was opened for reading, 0 on a channel
+	 */
+	long getLastModified()
+	{
+		return lastModified;
+	}
+
 	@Override
 	public String getPath() {
 		return file != null? file.getPath():"<null>";
@@ -114,11 +189,178 @@ An extended Format chunk is used for non-PCM data. The cbSize field gives the si
 		return validBits;
 	}
 
+	/**
+	 * set the size of the local IO buffer used by files that don't set their own. takes effect at their next open()
+	 * or create()
+	 * @param size in bytes
+	 */
+	public static void setDefaultBufferSize(int size)
+	{
+		defaultBufferSize = Math.max(MIN_BUFFER_SIZE, size);
+	}
+
+	public static int getDefaultBufferSize()
+	{
+		return defaultBufferSize;
+	}
+
+	/**
+	 * set the size of the local IO buffer for this file, which is also the size of each write behind buffer. takes
+	 * effect at the next open() or create()
+	 * @param size in bytes, 0 for the default
+	 */
+	public void setBufferSize(int size)
+	{
+		this.bufferSize = size > 0? Math.max(MIN_BUFFER_SIZE, size) : 0;
+	}
+
+	public int getBufferSize()
+	{
+		return bufferSize > 0? bufferSize : defaultBufferSize;
+	}
+
+	/**
+	 * read the data chunk ahead on a background thread, into a queue of large blocks, rather than on demand as the
+	 * frames are asked for. takes effect at the next open(), and is ignored when memory mapped
+	 * @param numBlocks number of blocks kept in flight, 0 to turn read ahead off
+	 * @param blockSize size of each block in bytes, rounded down to a whole number of frames
+	 */
+	public void setReadAhead(int numBlocks, int blockSize)
+	{
+		this.readAheadBlocks = numBlocks;
+		this.readAheadBlockSize = blockSize;
+	}
+
+	/**
+	 * write out the data on a background thread when created. the producer fills one buffer while the others
+	 * are being written, and close() waits for them all to be written before patching the header. takes effect at the next
+	 * create()
+	 * @param numBuffers number of buffers to rotate through, 2 for double buffering, 0 to turn write behind off
+	 */
+	public void setWriteBehind(int numBuffers)
+	{
+		this.writeBehindBuffers = numBuffers;
+	}
+
+	/**
+	 * patch the RIFF and data sizes in place on a background thread as the file is written, so that if the
+	 * recording stops without close(), through a crash or power loss, it still opens with all but the last
+	 * moments of its data. the header starts out with no data rather than the number of frames asked for. takes
+	 * effect at the next create(), and both 0 turns it off
+	 * @param intervalMillis commit at least this often, 0 for no time limit
+	 * @param intervalBytes commit once this much more data has been written, 0 for no byte limit
+	 */
+	public void setHeaderCommit(long intervalMillis, long intervalBytes)
+	{
+		this.headerCommitMillis = Math.max(0, intervalMillis);
+		this.headerCommitBytes = Math.max(0, intervalBytes);
+	}
+
+	/**
+	 * @return number of times the header has been patched since the last create() in durable mode
+	 */
+	public int getHeaderCommits()
+	{
+		return headerCommit != null? headerCommit.getCommits() : 0;
+	}
+
+	/**
+	 * write a WAVE_FORMAT_EXTENSIBLE header when created, which can hold samples in containers bigger than their
+	 * valid bits need, such as 24 bits in 32, with the valid bits at the top, and gives the speaker position of each
+	 * channel. takes effect at the next create()
+	 * @param containerBits size of each sample, a multiple of 8, 0 to write a plain header
+	 * @param channelMask SPEAKER_.. bits as in WAVEFORMATEXTENSIBLE, 0 for none
+	 */
+	public void setExtensible(int containerBits, int channelMask)
+	{
+		this.extensibleContainerBits = containerBits;
+		this.extensibleChannelMask = channelMask;
+	}
+
+	/**
+	 * @return true if the file open or being created has a WAVE_FORMAT_EXTENSIBLE header, in which case getFormat()
+	 * is that of its SubFormat
+	 */
+	public boolean isExtensible()
+	{
+		return extensible;
+	}
+
+	/**
+	 * @return speaker positions of the channels of a WAVE_FORMAT_EXTENSIBLE file, 0 if it doesn't give them
+	 */
+	public int getChannelMask()
+	{
+		return channelMask;
+	}
+
+	/**
+	 * keep peaks and levels up to date as the file is written. takes effect at the next create(), which resets the tap
+	 * @param tap null for none
+	 */
+	public void setLevelTap(LevelTap tap)
+	{
+		this.levelTap = tap;
+	}
+
+	public LevelTap getLevelTap()
+	{
+		return levelTap;
+	}
+
+	/**
+	 * @return number of times a writer had to wait for a free buffer since the last create() in write behind mode
+	 */
+	public int getWriteBehindOverruns()
+	{
+		return writeBehind != null? writeBehind.getOverruns() : 0;
+	}
+
+	/**
+	 * @return number of filled buffers currently waiting to be written in write behind mode
+	 */
+	public int getWriteBehindQueueDepth()
+	{
+		return writeBehind != null? writeBehind.getQueueDepth() : 0;
+	}
+
+	/**
+	 * @return most filled buffers that have been waiting at once since the last create() in write behind mode
+	 */
+	public int getWriteBehindMaxQueueDepth()
+	{
+		return writeBehind != null? writeBehind.getMaxQueueDepth() : 0;
+	}
+
 	public void create(File file, int numChannels, long numFrames, int validBits, long sampleRate) throws IOException, AudioFileException {
 		create(file, numChannels, numFrames, validBits, sampleRate, WAV_FORMAT_PCM);
 	}
 
 	public void create(File file, int numChannels, long numFrames, int validBits, long sampleRate, int format) throws IOException, AudioFileException
+	{
+		create(file, null, numChannels, numFrames, validBits, sampleRate, format);
+	}
+
+	/**
+	 * create a wave file on a channel rather than a file, such as a MemoryChannel, or a subclass of FileChannel over
+	 * some other storage. the channel is written from the start, and close() cuts it to the end of the wave file
+	 * and leaves it open. until then anything past what has been written is kept, so space preallocated with
+	 * RandomAccessFile.setLength() is written into rather than given back
+	 * @param channel
+	 * @param numChannels
+	 * @param numFrames
+	 * @param validBits
+	 * @param sampleRate
+	 * @param format
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	public void create(FileChannel channel, int numChannels, long numFrames, int validBits, long sampleRate, int format) throws IOException, AudioFileException
+	{
+		create(null, channel, numChannels, numFrames, validBits, sampleRate, format);
+	}
+
+	private void create(File file, FileChannel channel, int numChannels, long numFrames, int validBits, long sampleRate, int format) throws IOException, AudioFileException
 	{
 		if (ioState != IOState.CLOSED) {
 			close();
@@ -128,7 +370,9 @@ An extended Format chunk is used for non-PCM data. The cbSize field gives the si
 		this.numChannels = numChannels;
 		this.numFrames = numFrames;
 		this.sampleRate = sampleRate;
-		this.bytesPerSample = (validBits + 7) / 8;
+		this.extensible = extensibleContainerBits > 0;
+		this.channelMask = extensible? extensibleChannelMask : 0;
+		this.bytesPerSample = extensible? extensibleContainerBits / 8 : (validBits + 7) / 8;
 		this.blockAlign = this.bytesPerSample * numChannels;
 		this.validBits = validBits;
 		this.format = format;
@@ -138,23 +382,34 @@ An extended Format chunk is used for non-PCM data. The cbSize field gives the si
 		if (numFrames < 0) throw new AudioFileException("Number of frames must be positive");
 		if (validBits < 2 || validBits > 65535) throw new AudioFileException("Illegal number of valid bits, valid range 2 to 65536");
 		if (sampleRate < 0) throw new AudioFileException("Sample rate must be positive");
+		if (extensible && (extensibleContainerBits % 8 != 0 || extensibleContainerBits < validBits)) throw new AudioFileException("Illegal container size, must be whole bytes and hold the valid bits");
+
+		this.codec = writeCodec(format, bytesPerSample, validBits, extensible);
+		if (levelTap != null) levelTap.start(numChannels, blockAlign, readCodec(format, bytesPerSample, validBits, extensible));
 
-		// Create output stream for writing data
-		this.oStream = new FileOutputStream(file);
+		// Create output stream for writing data, unless given a channel
+		if (channel != null) channel.position(0);
+		this.outChannel = channel != null? channel : new FileOutputStream(file).getChannel();
+		this.ownChannel = channel == null;
 		
-		writeHeader(this);
+		acquireBuffer();
+		reserveDs64 = WavHeader.needsDs64(blockAlign * numFrames);
+		boolean durable = headerCommitMillis > 0 || headerCommitBytes > 0;
+		int headerLength = writeHeader(this, durable? 0 : numFrames);
+
+		writeBehind = null;
+		if (writeBehindBuffers > 0) {
+			writeBehind = new WriteBehind(outChannel, Math.max(2, writeBehindBuffers), bufferView);
+			writeBehindBuffer = writeBehind.first();
+			buffer = writeBehindBuffer.data;
+			bufferView = writeBehindBuffer.view;
+		}
 
-		// Calculate the scaling factor for converting to a normalised double
-		if (this.validBits > 8) {
-			// If more than 8 validBits, data is signed
-			// Conversion required multiplying by magnitude of max positive value
-			this.doubleOffset = 0;
-			this.doubleScale = Long.MAX_VALUE >> (64 - this.validBits);
-		} else {
-			// Else if 8 or less validBits, data is unsigned
-			// Conversion required dividing by max positive value
-			this.doubleOffset = 1;
-			this.doubleScale = 0.5 * ((1 << this.validBits) - 1);
+		headerCommit = null;
+		if (durable) {
+			WavHeader layout = layout();
+			layout.dataStart = headerLength;
+			headerCommit = new HeaderCommit(outChannel, layout, numFrames, reserveDs64, headerCommitMillis, headerCommitBytes);
 		}
 
 		// Finally, set the IO State
@@ -164,199 +419,258 @@ An extended Format chunk is used for non-PCM data. The cbSize field gives the si
 		this.ioState = IOState.WRITING;
 	}
 
-	private static void writeHeader(WavFile wavFile) throws IOException
+	/**
+	 * write the header for the given number of frames, which is RF64 if there is room for a ds64 chunk and the data
+	 * needs it
+	 * @return length of the header
+	 */
+	private static int writeHeader(WavFile wavFile, long numFrames) throws IOException
 	{
-		// Calculate the chunk sizes
-		long dataChunkSize = wavFile.blockAlign * wavFile.numFrames;
-		long mainChunkSize =	4 +	// Riff Type
-									8 +	// Format ID and size
-									16 +	// Format data
-									8 + 	// Data ID and size
-									dataChunkSize;
-
-		// Chunks must be word aligned, so if odd number of audio data bytes
-		// adjust the main chunk size
-		if (dataChunkSize % 2 == 1) {
-			mainChunkSize += 1;
-			wavFile.wordAlignAdjust = true;
-		}
-		else {
-			wavFile.wordAlignAdjust = false;
-		}
+		long dataChunkSize = wavFile.blockAlign * numFrames;
+		int length = wavFile.layout().put(wavFile.buffer, dataChunkSize, wavFile.reserveDs64);
+		wavFile.writeBuffer(length);
+		return length;
+	}
 
-		// Set the main chunk size
-		putLE(RIFF_CHUNK_ID,	wavFile.buffer, 0, 4);
-		putLE(mainChunkSize,	wavFile.buffer, 4, 4);
-		putLE(RIFF_TYPE_ID,	wavFile.buffer, 8, 4);
+	/**
+	 * @return the format of the file, to lay out its header
+	 */
+	private WavHeader layout()
+	{
+		WavHeader h = new WavHeader();
+		h.format = format;
+		h.numChannels = numChannels;
+		h.sampleRate = sampleRate;
+		h.blockAlign = blockAlign;
+		h.validBits = validBits;
+		h.bytesPerSample = bytesPerSample;
+		h.extensible = extensible;
+		h.channelMask = channelMask;
+		return h;
+	}
 
-		// Write out the header
-		wavFile.oStream.write(wavFile.buffer, 0, 12);
-/*
-fact Chunk
-
-All (compressed) non-PCM formats must have a fact chunk (Rev. 3 documentation).
-The chunk contains at least one value, the number of samples in the file.
-Field 	Length 	Contents
-ckID 	4 	Chunk ID: "fact"
-cksize 	4 	Chunk size: minimum 4
-dwSampleLength 	4 	Number of samples (per channel)
-
-The Rev. 3 documentation states that the Fact chunk "is required for all new new WAVE formats",
-but "is not required" for the standard WAVE_FORMAT_PCM file.
-One presumes that files with IEEE float data (introduced after the Rev. 3 documention) need a fact chunk.
-*/
-		// Put format data in buffer
-		long averageBytesPerSecond = wavFile.sampleRate * wavFile.blockAlign;
+	/**
+	 * codec for writing
+	 */
+	static SampleCodec writeCodec(int format, int bytesPerSample, int validBits) throws AudioFileException
+	{
+		return writeCodec(format, bytesPerSample, validBits, false);
+	}
 
-		int wavFormatChunkLen = (wavFile.format == WAV_FORMAT_PCM)? 16 : 18;
-		putLE(FMT_CHUNK_ID, wavFile.buffer, 0, 4);        // Chunk ID
-		putLE(wavFormatChunkLen, wavFile.buffer, 4, 4);        			// Chunk Data Size
-		putLE(wavFile.format, wavFile.buffer, 8, 2);        // Compression Code (Uncompressed)
-		putLE(wavFile.numChannels, wavFile.buffer, 10, 2);	// Number of channels
-		putLE(wavFile.sampleRate, wavFile.buffer, 12, 4);	// Sample Rate
-		putLE(averageBytesPerSecond, wavFile.buffer, 16, 4);	// Average Bytes Per Second
-		putLE(wavFile.blockAlign, wavFile.buffer, 20, 2);	// Block Align
-		putLE(wavFile.validBits, wavFile.buffer, 22, 2);	// Valid Bits
-		if (wavFile.format != WAV_FORMAT_PCM) {
-			putLE(0, wavFile.buffer, 24, 2);
+	/**
+	 * @param justified the valid bits are at the top of each sample, as in WAVE_FORMAT_EXTENSIBLE, rather than taken
+	 *                  as the whole sample
+	 */
+	static SampleCodec writeCodec(int format, int bytesPerSample, int validBits, boolean justified) throws AudioFileException
+	{
+		int shift = justified? bytesPerSample * 8 - validBits : 0;
+		// Calculate the scaling factor for converting from a normalised double
+		if (bytesPerSample > 1) {
+			// If the samples are more than a byte, data is signed, whatever the valid bits, as 8 in 16 can be
+			// Conversion required multiplying by magnitude of max positive value
+			return SampleCodec.forFormat(format, bytesPerSample, shift, 0, Long.MAX_VALUE >> (64 - validBits));
+		} else {
+			// Else if a byte or less, data is unsigned
+			// Conversion required dividing by max positive value
+			return SampleCodec.forFormat(format, bytesPerSample, shift, 1, 0.5 * ((1 << validBits) - 1));
 		}
-		wavFile.oStream.write(wavFile.buffer, 0, 8 + wavFormatChunkLen);
+	}
 
-		// Start Data Chunk
-		putLE(DATA_CHUNK_ID, wavFile.buffer, 0, 4);		// Chunk ID
-		putLE(dataChunkSize, wavFile.buffer, 4, 4);		// Chunk Data Size
+	/**
+	 * codec for reading, whose conversion to a normalised double differs slightly from the one create() writes with
+	 */
+	static SampleCodec readCodec(int format, int bytesPerSample, int validBits) throws AudioFileException
+	{
+		return readCodec(format, bytesPerSample, validBits, false);
+	}
 
-		// Write Format Chunk
-		wavFile.oStream.write(wavFile.buffer, 0, 8);
+	/**
+	 * @param justified the valid bits are at the top of each sample, as in WAVE_FORMAT_EXTENSIBLE, rather than taken
+	 *                  as the whole sample
+	 */
+	static SampleCodec readCodec(int format, int bytesPerSample, int validBits, boolean justified) throws AudioFileException
+	{
+		int shift = justified? bytesPerSample * 8 - validBits : 0;
+		// Calculate the scaling factor for converting to a normalised double
+		if (bytesPerSample > 1) {
+			// If the samples are more than a byte, data is signed, whatever the valid bits, as 8 in 16 can be
+			// Conversion required dividing by magnitude of max negative value
+			return SampleCodec.forFormat(format, bytesPerSample, shift, 0, Math.pow(2, validBits - 1));
+		} else {
+			// Else if a byte or less, data is unsigned
+			// Conversion required dividing by max positive value
+			return SampleCodec.forFormat(format, bytesPerSample, shift, -1, 0.5 * ((1 << validBits) - 1));
+		}
 	}
 
 	public void open(File file) throws IOException, AudioFileException
+	{
+		open(file, false);
+	}
+
+	/**
+	 * Open a wave file for reading
+	 * @param file
+	 * @param memoryMapped if true, the data chunk is read through a memory mapping of the file, a window at a time,
+	 *                     rather than through the input stream and local buffer. Intended for very large files
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	public void open(File file, boolean memoryMapped) throws IOException, AudioFileException
+	{
+		open(file, null, memoryMapped);
+	}
+
+	/**
+	 * open a wave file on a channel rather than a file, such as a MemoryChannel, or a subclass of FileChannel over
+	 * some other storage. it is read from the start, and is left open by close()
+	 * @param channel
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	public void open(FileChannel channel) throws IOException, AudioFileException
+	{
+		open(null, channel, false);
+	}
+
+	private void open(File file, FileChannel channel, boolean memoryMapped) throws IOException, AudioFileException
 	{
 		if (ioState != IOState.CLOSED) {
 			close();
 		}
 		// Instantiate new Wavfile and store the file reference
 		this.file = file;
-
-		// Create a new file input stream for reading file data
-		iStream = new FileInputStream(file);
-
-		// Read the first 12 bytes of the file
-		int bytesRead = iStream.read(buffer, 0, 12);
-		if (bytesRead != 12) throw new AudioFileException("Not enough wav file bytes for header");
-
-		// Extract parts from the header
-		long riffChunkID = getLE(buffer, 0, 4);
-		long chunkSize = getLE(buffer, 4, 4);
-		long riffTypeID = getLE(buffer, 8, 4);
-
-		// Check the header bytes contains the correct signature
-		if (riffChunkID != RIFF_CHUNK_ID) throw new AudioFileException("Invalid Wav Header data, incorrect riff chunk ID");
-		if (riffTypeID != RIFF_TYPE_ID) throw new AudioFileException("Invalid Wav Header data, incorrect riff type ID");
-
-		// Check that the file size matches the number of bytes listed in header
-		if (file.length() != chunkSize+8) {
-			throw new AudioFileException("Header chunk size (" + chunkSize + ") does not match file size (" + file.length() + ")");
+		this.memoryMapped = memoryMapped;
+
+		// Create a new file input stream for reading file data, unless given a channel
+		if (channel != null) channel.position(0);
+		inChannel = channel != null? channel : new FileInputStream(file).getChannel();
+		ownChannel = channel == null;
+		fileLength = inChannel.size();
+		lastModified = file != null? file.lastModified() : 0;
+		acquireBuffer();
+
+		// Parse the header up to the start of the data, which checks it's a format we can read
+		WavHeader h = WavHeader.read(inChannel, new byte[HEADER_BLOCK_SIZE], buffer);
+		format = h.format;
+		numChannels = h.numChannels;
+		sampleRate = h.sampleRate;
+		blockAlign = h.blockAlign;
+		validBits = h.validBits;
+		bytesPerSample = h.bytesPerSample;
+		extensible = h.extensible;
+		channelMask = h.channelMask;
+		dataStart = h.dataStart;
+
+		// Check that the file size matches the number of bytes listed in header. a recording that stopped without
+		// close() can have data past what the header last counted, which is ignored, so that it still opens
+		if (inChannel.size() != h.riffChunkSize+8) {
+			Log.w("wave file", "Header chunk size (" + h.riffChunkSize + ") does not match file size (" + inChannel.size() + ")");
 		}
 
-		boolean foundFormat = false;
-		boolean foundData = false;
-
-		// Search for the Format and Data Chunks
-		while (true) {
-			// Read the first 8 bytes of the chunk (ID and chunk size)
-			bytesRead = iStream.read(buffer, 0, 8);
-			if (bytesRead == -1) throw new AudioFileException("Reached end of file without finding format chunk");
-			if (bytesRead != 8) throw new AudioFileException("Could not read chunk header");
+		if (h.dataChunkSize < 0) {
+			// Written to a stream, as by WavStreamWriter, so the data runs to the end of the file, taking
+			// as many whole frames as there are
+			numFrames = Math.max(0, inChannel.size() - dataStart) / blockAlign;
+		} else {
+			// Check that the chunkSize (wav data length) is a multiple of the
+			// block align (bytes per frame)
+			if (h.dataChunkSize % blockAlign != 0) throw new AudioFileException("Data Chunk size is not multiple of Block Align");
 
-			// Extract the chunk ID and Size
-			long chunkID = getLE(buffer, 0, 4);
-			chunkSize = getLE(buffer, 4, 4);
+			// Calculate the number of frames
+			numFrames = h.dataChunkSize / blockAlign;
+		}
+		if (dataStart + numFrames * blockAlign > inChannel.size()) throw new AudioFileException("Data chunk runs past the end of the file");
+		inChannel.position(dataStart);
 
-			// Word align the chunk size
-			// chunkSize specifies the number of bytes holding data. However,
-			// the data should be word aligned (2 bytes) so we need to calculate
-			// the actual number of bytes in the chunk
-			long numChunkBytes = (chunkSize%2 == 1) ? chunkSize+1 : chunkSize;
+		codec = readCodec(format, bytesPerSample, validBits, extensible);
 
-			if (chunkID == FMT_CHUNK_ID) {
-				// Flag that the format chunk has been found
-				foundFormat = true;
+		block = bufferView;
+		bufferPointer = 0;
+		this.bytesRead = 0;
+		frameCounter = 0;
+		blockStart = 0;
+		if (memoryMapped) {
+			mapWindow(0);
+		} else if (readAheadBlocks > 0) {
+			int blockSize = Math.max(1, readAheadBlockSize / blockAlign) * blockAlign;
+			readAhead = new ReadAhead(inChannel, dataStart, numFrames * blockAlign, readAheadBlocks, blockSize, 0);
+		}
+		ioState = IOState.READING;
+	}
 
-				// Read in the header info
-				bytesRead = iStream.read(buffer, 0, 16);
+	/**
+	 * map a window of the data chunk, starting at the given offset from the start of the data. windows are a whole
+	 * number of frames, so a sample never straddles two of them
+	 * @param start
+	 * @throws IOException
+	 */
+	private void mapWindow(long start) throws IOException
+	{
+		long dataLength = numFrames * blockAlign;
+		long windowSize = (MAP_WINDOW_SIZE / blockAlign) * blockAlign;
+		mappedData = inChannel.map(FileChannel.MapMode.READ_ONLY, dataStart + start, Math.min(windowSize, dataLength - start));
+		mappedData.order(ByteOrder.LITTLE_ENDIAN);
+		blockStart = start;
+		block = mappedData;
+		bufferPointer = 0;
+		bytesRead = mappedData.capacity();
+	}
 
-				// Check this is uncompressed data
-				format = (int) getLE(buffer, 0, 2);
-				if (format != WAV_FORMAT_PCM && format != WAV_FORMAT_IEEE_FLOAT) {
-					throw new AudioFileException("Wav format " + format + " not supported");
-				}
+	/**
+	 * move on to the read ahead block starting at the given offset from the start of the data, handing back the
+	 * one we've finished with. blocks are a whole number of frames, as with mapped windows
+	 * @param start
+	 * @throws IOException
+	 */
+	private void takeReadAheadBlock(long start) throws IOException
+	{
+		if (readAheadBlock != null) {
+			readAhead.recycle(readAheadBlock);
+			readAheadBlock = null;
+		}
+		readAheadBlock = readAhead.take(start);
+		blockStart = start;
+		block = readAheadBlock.data;
+		bufferPointer = 0;
+		bytesRead = readAheadBlock.length;
+	}
 
-				// Extract the format information
-				numChannels = (int) getLE(buffer, 2, 2);
-				sampleRate = getLE(buffer, 4, 4);
-				blockAlign = (int) getLE(buffer, 12, 2);
-				validBits = (int) getLE(buffer, 14, 2);
-
-				if (numChannels == 0) throw new AudioFileException("Number of channels specified in header is equal to zero");
-				if (blockAlign == 0) throw new AudioFileException("Block Align specified in header is equal to zero");
-				if (validBits < 2) throw new AudioFileException("Valid Bits specified in header is less than 2");
-				if (validBits > 64) throw new AudioFileException("Valid Bits specified in header is greater than 64, this is greater than a long can hold");
-
-				// Calculate the number of bytes required to hold 1 sample
-				bytesPerSample = (validBits + 7) / 8;
-				if (bytesPerSample * numChannels != blockAlign)
-					throw new AudioFileException("Block Align does not agree with bytes required for validBits and number of channels");
-
-				// Account for number of format bytes and then skip over
-				// any extra format bytes
-				numChunkBytes -= 16;
-				if (numChunkBytes > 0) iStream.skip(numChunkBytes);
-			} else if (chunkID == DATA_CHUNK_ID) {
-				// Check if we've found the format chunk,
-				// If not, throw an exception as we need the format information
-				// before we can read the data chunk
-				if (foundFormat == false) throw new AudioFileException("Data chunk found before Format chunk");
-
-				// Check that the chunkSize (wav data length) is a multiple of the
-				// block align (bytes per frame)
-				if (chunkSize % blockAlign != 0) throw new AudioFileException("Data Chunk size is not multiple of Block Align");
-
-				// Calculate the number of frames
-				numFrames = chunkSize / blockAlign;
-				
-				// Flag that we've found the wave data chunk
-				foundData = true;
-
-				break;
+	/**
+	 * make sure there are at least minBytes of sample data in the current block past bufferPointer, either by topping
+	 * up the local buffer from the stream, keeping any partial sample left at the end of it, or by moving on to
+	 * the next mapped window or read ahead block
+	 * @param minBytes no more than the size of the local buffer
+	 * @return the number of bytes available in the block past bufferPointer
+	 * @throws IOException
+	 * @throws AudioFileException if the file runs out first
+	 */
+	private int nextBlock(int minBytes) throws IOException, AudioFileException
+	{
+		int available = bytesRead - bufferPointer;
+		if (available >= minBytes) return available;
+
+		if (mappedData != null || readAhead != null) {
+			long next = blockStart + bufferPointer;
+			if (next >= numFrames * blockAlign) throw new AudioFileException("Not enough data available");
+			if (mappedData != null) {
+				mapWindow(next);
 			} else {
-				// If an unknown chunk ID is found, just skip over the chunk data
-				iStream.skip(numChunkBytes);
+				takeReadAheadBlock(next);
 			}
-		}
-		
-		dataStart = iStream.getChannel().position();
-
-		// Throw an exception if no data chunk has been found
-		if (foundData == false) throw new AudioFileException("Did not find a data chunk");
-
-		// Calculate the scaling factor for converting to a normalised double
-		if (validBits > 8) {
-			// If more than 8 validBits, data is signed
-			// Conversion required dividing by magnitude of max negative value
-			doubleOffset = 0;
-			doubleScale = 1 << (validBits - 1);
-		} else {
-			// Else if 8 or less validBits, data is unsigned
-			// Conversion required dividing by max positive value
-			doubleOffset = -1;
-			doubleScale = 0.5 * ((1 << validBits) - 1);
+			if (bytesRead < minBytes) throw new AudioFileException("Not enough data available");
+			return bytesRead;
 		}
 
+		System.arraycopy(buffer, bufferPointer, buffer, 0, available);
 		bufferPointer = 0;
-		bytesRead = 0;
-		frameCounter = 0;
-		ioState = IOState.READING;
+		bytesRead = available;
+		while (bytesRead < minBytes) {
+			int read = readBuffer(bytesRead, buffer.length - bytesRead);
+			if (read == -1) throw new AudioFileException("Not enough data available");
+			bytesRead += read;
+		}
+		return bytesRead;
 	}
 
 
@@ -370,21 +684,39 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 		if (frame < 0) {
 			throw new AudioFileException("Wave seek, invalid frame requested");
 		}
-		FileChannel c = iStream.getChannel();
-		long cp = c.position() - bytesRead + bufferPointer;
-		long frs = dataStart+(frame*bytesPerSample*numChannels);
-		if (frs == cp) {
-			Log.d("wave file", "seek frame is in the right spot!");
+		if (mappedData != null || readAhead != null) {
+			if (frame > numFrames) {
+				throw new AudioFileException("Wave seek, invalid frame requested");
+			}
+			long pos = frame * blockAlign;
+			if (pos >= blockStart && pos < blockStart + bytesRead) {
+				bufferPointer = (int) (pos - blockStart);
+			} else if (mappedData != null) {
+				mapWindow(pos);
+			} else {
+				// redirect the read ahead, and pick up the first block from there when it's needed
+				if (readAheadBlock != null) {
+					readAhead.recycle(readAheadBlock);
+					readAheadBlock = null;
+				}
+				readAhead.restart(pos);
+				blockStart = pos;
+				bufferPointer = bytesRead = 0;
+			}
+			frameCounter = frame;
 			return;
 		}
-		if (frs >= (c.position()-bytesRead) && frs <= c.position()) {
-			Log.d("wave file", "seek frame is at least in the same buffer!");
-			bufferPointer = (int) (frs-c.position()+bytesRead);
-			return;
+		FileChannel c = inChannel;
+		long bufferStart = c.position() - bytesRead;
+		long frs = dataStart+(frame*blockAlign);
+		if (frs >= bufferStart && frs <= c.position()) {
+			Log.d("wave file", "seek frame is in the same buffer!");
+			bufferPointer = (int) (frs-bufferStart);
+		} else {
+			c.position(frs);
+			Log.d("wave file", String.format("position %d", frs));
+			bufferPointer = bytesRead = 0;
 		}
-		c.position(frs);
-		Log.d("wave file", String.format("position %d", frs));
-		bufferPointer = bytesRead = 0;
 		frameCounter = frame;
 	}
 	
@@ -394,11 +726,14 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 		if (dataStart <= 0) {
 			throw new AudioFileException("Wave seek, data start unknown");
 		}
-		long p = iStream.getChannel().position() - bytesRead + bufferPointer;
-		if (p <= 0) {
+		if (mappedData != null || readAhead != null) {
+			return (blockStart + bufferPointer) / blockAlign;
+		}
+		long p = inChannel.position() - bytesRead + bufferPointer - dataStart;
+		if (p < 0) {
 			throw new AudioFileException("Wave seek, invalid frame calculated");
 		}
-		return p/(bytesPerSample*numChannels);
+		return p/blockAlign;
 	}
 	
 	/**
@@ -408,7 +743,7 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 	 * @param numBytes
 	 * @return
 	 */
-	private static long getLE(byte[] buffer, int pos, int numBytes)
+	static long getLE(byte[] buffer, int pos, int numBytes)
 	{
 		numBytes --;
 		pos += numBytes;
@@ -426,7 +761,7 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 	 * @param numBytes
 	 * @return
 	 */
-	private static void putLE(long val, byte[] buffer, int pos, int numBytes)
+	static void putLE(long val, byte[] buffer, int pos, int numBytes)
 	{
 		for (int b=0 ; b<numBytes ; b++)
 		{
@@ -440,51 +775,200 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 	// Sample Writing and Reading
 	////////////////////////////////////////////////////////////////////////////
 
-	private void writeSample(long val) throws IOException
+	/**
+	 * write out whatever has been encoded into the local buffer, or queue it to be written in write behind mode
+	 * @throws IOException
+	 */
+	private void flushBuffer() throws IOException
 	{
-		for (int b=0 ; b<bytesPerSample ; b++) {
-			if (bufferPointer == BUFFER_SIZE) {
-				oStream.write(buffer, 0, BUFFER_SIZE);
-				bufferPointer = 0;
-			}
-
-			buffer[bufferPointer] = (byte) (val & 0xFF);
-			val >>= 8;
-			bufferPointer ++;
+		if (levelTap != null) levelTap.add(bufferView, 0, bufferPointer);
+		if (writeBehind != null) {
+			// swap it for an empty one, and leave the writing to the background thread
+			writeBehindBuffer.length = bufferPointer;
+			writeBehindBuffer = writeBehind.submit(writeBehindBuffer);
+			buffer = writeBehindBuffer.data;
+			bufferView = writeBehindBuffer.view;
+		} else {
+			writeBuffer(bufferPointer);
 		}
+		if (headerCommit != null) headerCommit.wrote(bufferPointer);
+		bufferPointer = 0;
 	}
 
-	private void writeSampleF(float value) throws IOException
+	/**
+	 * write the start of the local buffer to the channel
+	 * @param length
+	 * @throws IOException
+	 */
+	private void writeBuffer(int length) throws IOException
 	{
-		writeSample(Float.floatToRawIntBits(value));
+		bufferView.limit(length);
+		try {
+			while (bufferView.hasRemaining()) outChannel.write(bufferView);
+		} finally {
+			bufferView.clear();		// The codec only uses absolute positions, but needs the whole buffer within the limit
+		}
 	}
 
-	private long readSample() throws IOException, AudioFileException
+	/**
+	 * read from the channel into the local buffer, as InputStream.read()
+	 * @param offset
+	 * @param length
+	 * @return number of bytes read, or -1 at the end of the channel
+	 * @throws IOException
+	 */
+	private int readBuffer(int offset, int length) throws IOException
 	{
-		long val = 0;
-		for (int b=0 ; b<bytesPerSample ; b++) {
-			if (bufferPointer == bytesRead) {
-				int read = iStream.read(buffer, 0, BUFFER_SIZE);
-//				Log.d("wave", String.format("read %d", read));
-				if (read == -1) throw new AudioFileException("Not enough data available");
-				bytesRead = read;
-				bufferPointer = 0;
+		bufferView.limit(offset + length);
+		bufferView.position(offset);
+		try {
+			int total = 0;
+			while (bufferView.hasRemaining()) {
+				int n = inChannel.read(bufferView);
+				if (n < 0) return total > 0? total : -1;
+				total += n;
 			}
+			return total;
+		} finally {
+			bufferView.clear();
+		}
+	}
 
-			int v = buffer[bufferPointer];
-			if (b < bytesPerSample-1 || bytesPerSample == 1) v &= 0xFF;
-			val += v << (b * 8);
+	/**
+	 * bulk write of interleaved frames, encoding as much as fits in the local buffer at a time
+	 * @param sampleBuffer one of the array types SampleCodec encodes from
+	 * @param offset
+	 * @param numFramesToWrite
+	 * @return
+	 * @throws IOException
+	 */
+	private int writeInterleaved(Object sampleBuffer, int offset, int numFramesToWrite) throws IOException
+	{
+		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
 
-			bufferPointer ++;
+		int framesToWrite = (int) Math.min(numFramesToWrite, numFrames - frameCounter);
+		int samplesLeft = framesToWrite * numChannels;
+		while (samplesLeft > 0) {
+			if (buffer.length - bufferPointer < bytesPerSample) flushBuffer();
+			int n = Math.min(samplesLeft, (buffer.length - bufferPointer) / bytesPerSample);
+			codec.encode(sampleBuffer, offset, bufferView, bufferPointer, bytesPerSample, n);
+			bufferPointer += n * bytesPerSample;
+			offset += n;
+			samplesLeft -= n;
 		}
+		frameCounter += framesToWrite;
+		return framesToWrite;
+	}
 
-		return val;
+	/**
+	 * @return frames in a block of a planar read or write. each channel of the block is gone through in turn, so
+	 * with a big buffer, or a memory mapping, the block is kept small enough to stay in cache from one channel to
+	 * the next, rather than striding across the whole buffer once for each channel
+	 */
+	private int planarBlockFrames()
+	{
+		return Math.max(1, PLANAR_BLOCK_SIZE / blockAlign);
 	}
 
-	private float readSampleF() throws IOException, AudioFileException {
-		return Float.intBitsToFloat((int)readSample());
+	/**
+	 * bulk write from one array per channel. each channel of a block of whole frames is encoded in one pass
+	 * @param sampleBuffer an array of one of the array types SampleCodec encodes from
+	 * @param offset
+	 * @param numFramesToWrite
+	 * @return
+	 * @throws IOException
+	 */
+	private int writePlanar(Object[] sampleBuffer, int offset, int numFramesToWrite) throws IOException
+	{
+		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
+
+		int framesToWrite = (int) Math.min(numFramesToWrite, numFrames - frameCounter);
+		int framesLeft = framesToWrite;
+		while (framesLeft > 0) {
+			if (buffer.length - bufferPointer < blockAlign) flushBuffer();
+			int n = Math.min(Math.min(framesLeft, planarBlockFrames()), (buffer.length - bufferPointer) / blockAlign);
+			if (n > 0) {
+				for (int c=0 ; c<numChannels ; c++) {
+					codec.encode(sampleBuffer[c], offset, bufferView, bufferPointer + c * bytesPerSample, blockAlign, n);
+				}
+				bufferPointer += n * blockAlign;
+			} else { // a frame is bigger than the local buffer, so go a sample at a time
+				for (int c=0 ; c<numChannels ; c++) {
+					if (buffer.length - bufferPointer < bytesPerSample) flushBuffer();
+					codec.encode(sampleBuffer[c], offset, bufferView, bufferPointer, bytesPerSample, 1);
+					bufferPointer += bytesPerSample;
+				}
+				n = 1;
+			}
+			offset += n;
+			framesLeft -= n;
+		}
+		frameCounter += framesToWrite;
+		return framesToWrite;
 	}
 
+	/**
+	 * bulk read of interleaved frames, decoding a block of the buffer at a time
+	 * @param sampleBuffer one of the array types SampleCodec decodes to
+	 * @param offset
+	 * @param numFramesToRead
+	 * @return
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	private int readInterleaved(Object sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
+
+		int framesToRead = (int) Math.min(numFramesToRead, numFrames - frameCounter);
+		int samplesLeft = framesToRead * numChannels;
+		while (samplesLeft > 0) {
+			int n = Math.min(samplesLeft, nextBlock(bytesPerSample) / bytesPerSample);
+			codec.decode(block, bufferPointer, bytesPerSample, sampleBuffer, offset, n);
+			bufferPointer += n * bytesPerSample;
+			offset += n;
+			samplesLeft -= n;
+		}
+		frameCounter += framesToRead;
+		return framesToRead;
+	}
+
+	/**
+	 * bulk read into one array per channel. each channel of a block of whole frames is decoded in one pass
+	 * @param sampleBuffer an array of one of the array types SampleCodec decodes to
+	 * @param offset
+	 * @param numFramesToRead
+	 * @return
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	private int readPlanar(Object[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
+
+		int framesToRead = (int) Math.min(numFramesToRead, numFrames - frameCounter);
+		int framesLeft = framesToRead;
+		while (framesLeft > 0) {
+			int n = Math.min(Math.min(framesLeft, planarBlockFrames()), nextBlock(Math.min(blockAlign, buffer.length)) / blockAlign);
+			if (n > 0) {
+				for (int c=0 ; c<numChannels ; c++) {
+					codec.decode(block, bufferPointer + c * bytesPerSample, blockAlign, sampleBuffer[c], offset, n);
+				}
+				bufferPointer += n * blockAlign;
+			} else { // a frame is bigger than the local buffer, so go a sample at a time
+				for (int c=0 ; c<numChannels ; c++) {
+					nextBlock(bytesPerSample);
+					codec.decode(block, bufferPointer, bytesPerSample, sampleBuffer[c], offset, 1);
+					bufferPointer += bytesPerSample;
+				}
+				n = 1;
+			}
+			offset += n;
+			framesLeft -= n;
+		}
+		frameCounter += framesToRead;
+		return framesToRead;
+	}
 
 	///////////////////////////////////////////////////////
 	// Short
@@ -497,20 +981,7 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 
 	public int readFrames(short[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
-
-		for (int f=0 ; f<numFramesToRead ; f++) {
-			if (frameCounter == numFrames) return f;
-
-			for (int c=0 ; c<numChannels ; c++) {
-				sampleBuffer[offset] = (short) readSample();
-				offset ++;
-			}
-
-			frameCounter ++;
-		}
-
-		return numFramesToRead;
+		return readInterleaved(sampleBuffer, offset, numFramesToRead);
 	}
 
 
@@ -523,24 +994,10 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 	@Override
 	public int writeFrames(short[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
-
-		for (int f=0 ; f<numFramesToWrite ; f++) {
-			if (frameCounter == numFrames) return f;
-
-			for (int c=0 ; c<numChannels ; c++){
-				writeSample(sampleBuffer[offset]);
-				offset ++;
-			}
-			frameCounter ++;
-		}
-
-		return numFramesToWrite;
+		return writeInterleaved(sampleBuffer, offset, numFramesToWrite);
 	}
 	/************************************************
 	 * Float
-	 * for the moment, these are the only versions
-	 * checking for WAV_FORMAT_FLOAT
 	 ************************************************/
 	public int readFrames(float[] sampleBuffer, int numFramesToRead) throws IOException, AudioFileException
 	{
@@ -549,27 +1006,7 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 
 	public int readFrames(float[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
-		if (format == WAV_FORMAT_PCM) {
-			for (int f=0 ; f<numFramesToRead ; f++)	{
-				if (frameCounter == numFrames) return f;
-				for (int c=0 ; c<numChannels ; c++)	{
-					sampleBuffer[offset] = readSampleF();
-					offset ++;
-				}
-				frameCounter ++;
-			}
-		} else if (format == WAV_FORMAT_IEEE_FLOAT) {
-			for (int f=0 ; f<numFramesToRead ; f++)	{
-				if (frameCounter == numFrames) return f;
-				for (int c=0 ; c<numChannels ; c++)	{
-					sampleBuffer[offset] = (float) (doubleOffset + (double) readSample() / doubleScale);
-					offset ++;
-				}
-				frameCounter ++;
-			}
-		}
-		return numFramesToRead;
+		return readInterleaved(sampleBuffer, offset, numFramesToRead);
 	}
 
 	@Override
@@ -579,126 +1016,342 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 
 	@Override
 	public int writeFrames(float[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException {
-		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
+		return writeInterleaved(sampleBuffer, offset, numFramesToWrite);
+	}
 
-		if (format == WAV_FORMAT_PCM) {
-			for (int f = 0; f < numFramesToWrite; f++) {
-				if (frameCounter == numFrames) return f;
+	public int readFrames(float[][] sampleBuffer, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return readFrames(sampleBuffer, 0, numFramesToRead);
+	}
 
-				for (int c = 0; c < numChannels; c++) {
-					writeSample((long) (doubleScale * (doubleOffset + sampleBuffer[offset])));
-					offset++;
-				}
-				frameCounter++;
-			}
-		} else if (format == WAV_FORMAT_IEEE_FLOAT) {
-			for (int f = 0; f < numFramesToWrite; f++) {
-				if (frameCounter == numFrames) return f;
+	public int readFrames(float[][] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return readPlanar(sampleBuffer, offset, numFramesToRead);
+	}
 
-				for (int c = 0; c < numChannels; c++) {
-					writeSampleF(sampleBuffer[offset]);
-					offset++;
-				}
-				frameCounter++;
-			}
-		}
-		return numFramesToWrite;
+	public int writeFrames(float[][] sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		return writeFrames(sampleBuffer, 0, numFramesToWrite);
+	}
+
+	public int writeFrames(float[][] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		return writePlanar(sampleBuffer, offset, numFramesToWrite);
 	}
 	
-	// Integer
-	// -------
-	public int readFrames(int[] sampleBuffer, int numFramesToRead) throws IOException, AudioFileException
+	///////////////////////////////////////////////////////
+	// Positional reads
+	// These read from a given frame with positional channel reads, and leave the sequential read
+	// state alone, so any number of threads can use them at once on the same open file, along with
+	// a sequential reader. They must not overlap open() or close(), and an interrupt during one of
+	// them closes the channel, as with any FileChannel.
+	//////////////////////////////////////////////////////
+
+	public int readFramesAt(long frame, short[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
 	{
-		return readFrames(sampleBuffer, 0, numFramesToRead);
+		return readAt(frame, sampleBuffer, offset, numFramesToRead, false);
 	}
 
-	public int readFrames(int[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	public int readFramesAt(long frame, int[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
+		return readAt(frame, sampleBuffer, offset, numFramesToRead, false);
+	}
 
-		for (int f=0 ; f<numFramesToRead ; f++)
-		{
-			if (frameCounter == numFrames) return f;
+	public int readFramesAt(long frame, long[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return readAt(frame, sampleBuffer, offset, numFramesToRead, false);
+	}
 
-			for (int c=0 ; c<numChannels ; c++)
-			{
-				sampleBuffer[offset] = (int) readSample();
-				offset ++;
-			}
+	public int readFramesAt(long frame, float[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return readAt(frame, sampleBuffer, offset, numFramesToRead, false);
+	}
 
-			frameCounter ++;
-		}
+	public int readFramesAt(long frame, double[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return readAt(frame, sampleBuffer, offset, numFramesToRead, false);
+	}
 
-		return numFramesToRead;
+	public int readFramesAt(long frame, int[][] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return readAt(frame, sampleBuffer, offset, numFramesToRead, true);
 	}
 
-	public int readFrames(int[][] sampleBuffer, int numFramesToRead) throws IOException, AudioFileException
+	public int readFramesAt(long frame, long[][] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
 	{
-		return readFrames(sampleBuffer, 0, numFramesToRead);
+		return readAt(frame, sampleBuffer, offset, numFramesToRead, true);
 	}
 
-	public int readFrames(int[][] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	public int readFramesAt(long frame, float[][] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return readAt(frame, sampleBuffer, offset, numFramesToRead, true);
+	}
+
+	public int readFramesAt(long frame, double[][] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return readAt(frame, sampleBuffer, offset, numFramesToRead, true);
+	}
+
+	/**
+	 * positional read of frames, interleaved or planar, through the calling thread's buffer
+	 * @param frame
+	 * @param sampleBuffer one of the array types SampleCodec decodes to, or an array of them if planar
+	 * @param offset
+	 * @param numFramesToRead
+	 * @param planar
+	 * @return number of frames read, fewer than asked for at the end of the file
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	private int readAt(long frame, Object sampleBuffer, int offset, int numFramesToRead, boolean planar) throws IOException, AudioFileException
 	{
 		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
+		if (frame < 0 || frame > numFrames) throw new AudioFileException("Wave read, invalid frame requested");
+
+		FileChannel c = inChannel;
+		ByteBuffer bb = positionalBuffer.get();
+		int framesPerBlock = bb.capacity() / blockAlign;
+		if (framesPerBlock == 0) { // frames too big for the thread's buffer, so one at a time through a buffer of our own
+			bb = ByteBuffer.allocateDirect(blockAlign).order(ByteOrder.LITTLE_ENDIAN);
+			framesPerBlock = 1;
+		}
 
-		for (int f=0 ; f<numFramesToRead ; f++)
-		{
-			if (frameCounter == numFrames) return f;
+		int framesToRead = (int) Math.min(numFramesToRead, numFrames - frame);
+		long position = dataStart + frame * blockAlign;
+		int framesLeft = framesToRead;
+		while (framesLeft > 0) {
+			int n = Math.min(framesLeft, framesPerBlock);
+			bb.clear();
+			bb.limit(n * blockAlign);
+			while (bb.hasRemaining()) {
+				if (c.read(bb, position + bb.position()) < 0) throw new AudioFileException("Not enough data available");
+			}
+			if (planar) {
+				Object[] channels = (Object[]) sampleBuffer;
+				int blockFrames = planarBlockFrames();
+				for (int done=0 ; done<n ; done+=blockFrames) {
+					int m = Math.min(n - done, blockFrames);
+					for (int ch=0 ; ch<numChannels ; ch++) codec.decode(bb, done * blockAlign + ch * bytesPerSample, blockAlign, channels[ch], offset + done, m);
+				}
+				offset += n;
+			} else {
+				codec.decode(bb, 0, bytesPerSample, sampleBuffer, offset, n * numChannels);
+				offset += n * numChannels;
+			}
+			position += n * blockAlign;
+			framesLeft -= n;
+		}
+		return framesToRead;
+	}
+
+	///////////////////////////////////////////////////////
+	// NIO buffers
+	//////////////////////////////////////////////////////
 
-			for (int c=0 ; c<numChannels ; c++) sampleBuffer[c][offset] = (int) readSample();
+	@Override
+	public int readFrames(ByteBuffer sampleBuffer, int numFramesToRead) throws IOException, AudioFileException
+	{
+		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
 
-			offset ++;
-			frameCounter ++;
+		int framesToRead = (int) Math.min(Math.min(numFramesToRead, numFrames - frameCounter), sampleBuffer.remaining() / blockAlign);
+		int bytesLeft = framesToRead * blockAlign;
+		if (sampleBuffer.isDirect() && mappedData == null && readAhead == null) {
+			// whatever is left in the local buffer, then straight from the channel into the caller's buffer
+			int n = Math.min(bytesLeft, bytesRead - bufferPointer);
+			copyFromBlock(sampleBuffer, n);
+			bytesLeft -= n;
+			if (bytesLeft > 0) {
+				bufferPointer = bytesRead = 0;
+				FileChannel c = inChannel;
+				int limit = sampleBuffer.limit();
+				sampleBuffer.limit(sampleBuffer.position() + bytesLeft);
+				try {
+					while (sampleBuffer.hasRemaining()) {
+						if (c.read(sampleBuffer) < 0) throw new AudioFileException("Not enough data available");
+					}
+				} finally {
+					sampleBuffer.limit(limit);
+				}
+			}
+		} else {
+			while (bytesLeft > 0) {
+				int n = Math.min(bytesLeft, nextBlock(1));
+				copyFromBlock(sampleBuffer, n);
+				bytesLeft -= n;
+			}
 		}
+		frameCounter += framesToRead;
+		return framesToRead;
+	}
 
-		return numFramesToRead;
+	/**
+	 * copy n bytes from the current block into dst, and move on past them
+	 */
+	private void copyFromBlock(ByteBuffer dst, int n)
+	{
+		if (block == bufferView) {
+			dst.put(buffer, bufferPointer, n);
+		} else {
+			ByteBuffer src = block.duplicate();
+			src.limit(bufferPointer + n);
+			src.position(bufferPointer);
+			dst.put(src);
+		}
+		bufferPointer += n;
 	}
 
-	public int writeFrames(int[] sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException
+	@Override
+	public int writeFrames(ByteBuffer sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException
 	{
-		return writeFrames(sampleBuffer, 0, numFramesToWrite);
+		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
+
+		int framesToWrite = (int) Math.min(Math.min(numFramesToWrite, numFrames - frameCounter), sampleBuffer.remaining() / blockAlign);
+		int bytesLeft = framesToWrite * blockAlign;
+		if (sampleBuffer.isDirect() && writeBehind == null) {
+			// keep the file in order, then straight from the caller's buffer into the channel
+			if (bufferPointer > 0) flushBuffer();
+			if (levelTap != null) levelTap.add(sampleBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN), sampleBuffer.position(), bytesLeft);
+			FileChannel c = outChannel;
+			int limit = sampleBuffer.limit();
+			sampleBuffer.limit(sampleBuffer.position() + bytesLeft);
+			try {
+				while (sampleBuffer.hasRemaining()) c.write(sampleBuffer);
+			} finally {
+				sampleBuffer.limit(limit);
+			}
+			if (headerCommit != null) headerCommit.wrote(framesToWrite * blockAlign);
+		} else {
+			while (bytesLeft > 0) {
+				if (bufferPointer == buffer.length) flushBuffer();
+				int n = Math.min(bytesLeft, buffer.length - bufferPointer);
+				sampleBuffer.get(buffer, bufferPointer, n);
+				bufferPointer += n;
+				bytesLeft -= n;
+			}
+		}
+		frameCounter += framesToWrite;
+		return framesToWrite;
 	}
 
-	public int writeFrames(int[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
+	@Override
+	public int readFrames(FloatBuffer sampleBuffer, int numFramesToRead) throws IOException, AudioFileException
+	{
+		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
+
+		int framesToRead = Math.min(numFramesToRead, sampleBuffer.remaining() / numChannels);
+		if (sampleBuffer.hasArray()) {
+			int n = readInterleaved(sampleBuffer.array(), sampleBuffer.arrayOffset() + sampleBuffer.position(), framesToRead);
+			sampleBuffer.position(sampleBuffer.position() + n * numChannels);
+			return n;
+		}
+		// decode into an array a buffer's worth at a time, and bulk copy that across
+		float[] scratch = floatScratch();
+		int framesRead = 0;
+		while (framesRead < framesToRead) {
+			int n = readInterleaved(scratch, 0, Math.min(framesToRead - framesRead, scratch.length / numChannels));
+			if (n == 0) break;
+			sampleBuffer.put(scratch, 0, n * numChannels);
+			framesRead += n;
+		}
+		return framesRead;
+	}
+
+	@Override
+	public int writeFrames(FloatBuffer sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException
 	{
 		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
 
-		for (int f=0 ; f<numFramesToWrite ; f++)
-		{
-			if (frameCounter == numFrames) return f;
+		int framesToWrite = (int) Math.min(Math.min(numFramesToWrite, numFrames - frameCounter), sampleBuffer.remaining() / numChannels);
+		if (sampleBuffer.hasArray()) {
+			int n = writeInterleaved(sampleBuffer.array(), sampleBuffer.arrayOffset() + sampleBuffer.position(), framesToWrite);
+			sampleBuffer.position(sampleBuffer.position() + n * numChannels);
+			return n;
+		}
+		float[] scratch = floatScratch();
+		int framesWritten = 0;
+		while (framesWritten < framesToWrite) {
+			int n = Math.min(framesToWrite - framesWritten, scratch.length / numChannels);
+			sampleBuffer.get(scratch, 0, n * numChannels);
+			writeInterleaved(scratch, 0, n);
+			framesWritten += n;
+		}
+		return framesWritten;
+	}
 
-			for (int c=0 ; c<numChannels ; c++)
-			{
-				writeSample(sampleBuffer[offset]);
-				offset ++;
-			}
+	/**
+	 * borrow the local buffer from the pool, unless it is still held from an open() that failed
+	 */
+	private void acquireBuffer()
+	{
+		if (bufferView != null) return;
+		bufferView = BufferPool.acquire(getBufferSize(), false);
+		buffer = bufferView.array();
+		block = bufferView;
+	}
 
-			frameCounter ++;
+	/**
+	 * give the local buffer back to the pool. in write behind mode this is whichever of its buffers was last being
+	 * filled, the others having been given back by the write behind itself
+	 */
+	private void releaseBuffer()
+	{
+		if (bufferView == null) return;
+		BufferPool.release(bufferView);
+		bufferView = null;
+		buffer = null;
+		block = null;
+		writeBehindBuffer = null;
+	}
+
+	private float[] floatScratch()
+	{
+		int length = Math.max(1, buffer.length / blockAlign) * numChannels;
+		if (floatScratch == null || floatScratch.length != length) {
+			floatScratch = new float[length];
 		}
+		return floatScratch;
+	}
 
-		return numFramesToWrite;
+	// Integer
+	// -------
+	public int readFrames(int[] sampleBuffer, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return readFrames(sampleBuffer, 0, numFramesToRead);
 	}
 
-	public int writeFrames(int[][] sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException
+	public int readFrames(int[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
 	{
-		return writeFrames(sampleBuffer, 0, numFramesToWrite);
+		return readInterleaved(sampleBuffer, offset, numFramesToRead);
 	}
 
-	public int writeFrames(int[][] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
+	public int readFrames(int[][] sampleBuffer, int numFramesToRead) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
+		return readFrames(sampleBuffer, 0, numFramesToRead);
+	}
 
-		for (int f=0 ; f<numFramesToWrite ; f++)
-		{
-			if (frameCounter == numFrames) return f;
+	public int readFrames(int[][] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
+	{
+		return readPlanar(sampleBuffer, offset, numFramesToRead);
+	}
 
-			for (int c=0 ; c<numChannels ; c++) writeSample(sampleBuffer[c][offset]);
+	public int writeFrames(int[] sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		return writeFrames(sampleBuffer, 0, numFramesToWrite);
+	}
 
-			offset ++;
-			frameCounter ++;
-		}
+	public int writeFrames(int[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		return writeInterleaved(sampleBuffer, offset, numFramesToWrite);
+	}
 
-		return numFramesToWrite;
+	public int writeFrames(int[][] sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		return writeFrames(sampleBuffer, 0, numFramesToWrite);
+	}
+
+	public int writeFrames(int[][] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
+	{
+		return writePlanar(sampleBuffer, offset, numFramesToWrite);
 	}
 
 	// Long
@@ -710,22 +1363,7 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 
 	public int readFrames(long[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
-
-		for (int f=0 ; f<numFramesToRead ; f++)
-		{
-			if (frameCounter == numFrames) return f;
-
-			for (int c=0 ; c<numChannels ; c++)
-			{
-				sampleBuffer[offset] = readSample();
-				offset ++;
-			}
-
-			frameCounter ++;
-		}
-
-		return numFramesToRead;
+		return readInterleaved(sampleBuffer, offset, numFramesToRead);
 	}
 
 	public int readFrames(long[][] sampleBuffer, int numFramesToRead) throws IOException, AudioFileException
@@ -735,19 +1373,7 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 
 	public int readFrames(long[][] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
-
-		for (int f=0 ; f<numFramesToRead ; f++)
-		{
-			if (frameCounter == numFrames) return f;
-
-			for (int c=0 ; c<numChannels ; c++) sampleBuffer[c][offset] = readSample();
-
-			offset ++;
-			frameCounter ++;
-		}
-
-		return numFramesToRead;
+		return readPlanar(sampleBuffer, offset, numFramesToRead);
 	}
 
 	public int writeFrames(long[] sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException
@@ -757,22 +1383,7 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 
 	public int writeFrames(long[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
-
-		for (int f=0 ; f<numFramesToWrite ; f++)
-		{
-			if (frameCounter == numFrames) return f;
-
-			for (int c=0 ; c<numChannels ; c++)
-			{
-				writeSample(sampleBuffer[offset]);
-				offset ++;
-			}
-
-			frameCounter ++;
-		}
-
-		return numFramesToWrite;
+		return writeInterleaved(sampleBuffer, offset, numFramesToWrite);
 	}
 
 	public int writeFrames(long[][] sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException
@@ -782,19 +1393,7 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 
 	public int writeFrames(long[][] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
-
-		for (int f=0 ; f<numFramesToWrite ; f++)
-		{
-			if (frameCounter == numFrames) return f;
-
-			for (int c=0 ; c<numChannels ; c++) writeSample(sampleBuffer[c][offset]);
-
-			offset ++;
-			frameCounter ++;
-		}
-
-		return numFramesToWrite;
+		return writePlanar(sampleBuffer, offset, numFramesToWrite);
 	}
 
 	// Double
@@ -806,16 +1405,7 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 
 	public int readFrames(double[] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
-		for (int f=0 ; f<numFramesToRead ; f++)	{
-			if (frameCounter == numFrames) return f;
-			for (int c=0 ; c<numChannels ; c++)	{
-				sampleBuffer[offset] = doubleOffset + (double) readSample() / doubleScale;
-				offset ++;
-			}
-			frameCounter ++;
-		}
-		return numFramesToRead;
+		return readInterleaved(sampleBuffer, offset, numFramesToRead);
 	}
 
 	public int readFrames(double[][] sampleBuffer, int numFramesToRead) throws IOException, AudioFileException
@@ -825,15 +1415,7 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 
 	public int readFrames(double[][] sampleBuffer, int offset, int numFramesToRead) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
-
-		for (int f=0 ; f<numFramesToRead ; f++)	{
-			if (frameCounter == numFrames) return f;
-			for (int c=0 ; c<numChannels ; c++) sampleBuffer[c][offset] = doubleOffset + (double) readSample() / doubleScale;
-			offset ++;
-			frameCounter ++;
-		}
-		return numFramesToRead;
+		return readPlanar(sampleBuffer, offset, numFramesToRead);
 	}
 
 	public int writeFrames(double[] sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException
@@ -843,22 +1425,7 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 
 	public int writeFrames(double[] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
-
-		for (int f=0 ; f<numFramesToWrite ; f++)
-		{
-			if (frameCounter == numFrames) return f;
-
-			for (int c=0 ; c<numChannels ; c++)
-			{
-				writeSample((long) (doubleScale * (doubleOffset + sampleBuffer[offset])));
-				offset ++;
-			}
-
-			frameCounter ++;
-		}
-
-		return numFramesToWrite;
+		return writeInterleaved(sampleBuffer, offset, numFramesToWrite);
 	}
 
 	public int writeFrames(double[][] sampleBuffer, int numFramesToWrite) throws IOException, AudioFileException
@@ -868,45 +1435,212 @@ One presumes that files with IEEE float data (introduced after the Rev. 3 docume
 
 	public int writeFrames(double[][] sampleBuffer, int offset, int numFramesToWrite) throws IOException, AudioFileException
 	{
-		if (ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
+		return writePlanar(sampleBuffer, offset, numFramesToWrite);
+	}
 
-		for (int f=0 ; f<numFramesToWrite ; f++)
-		{
-			if (frameCounter == numFrames) return f;
 
-			for (int c=0 ; c<numChannels ; c++) writeSample((long) (doubleScale * (doubleOffset + sampleBuffer[c][offset])));
+	public void close() throws IOException
+	{
+		mappedData = null;				// The mapping itself is released when the buffer is collected
+		if (readAhead != null) {
+			readAhead.close();
+			readAhead = null;
+			readAheadBlock = null;
+		}
+		if (inChannel != null){	// Close the input channel, if it is ours, and set to null
+			if (ownChannel) inChannel.close();
+			inChannel = null;
+		}
+
+		if (outChannel != null) {			
+			// Nothing else may patch the header while the final one is written. if a commit failed, still try to
+			// finish the file, and report it after
+			boolean committed = headerCommit != null;
+			IOException commitError = null;
+			if (headerCommit != null) {
+				try {
+					headerCommit.close();
+				} catch (IOException e) {
+					commitError = e;
+				}
+				headerCommit = null;
+			}
+			if (bufferPointer > 0) flushBuffer(); // Write out anything still in the local buffer
+			if (writeBehind != null) {
+				try {
+					writeBehind.close();	// Everything has to be written before the header can be patched
+				} catch (IOException e) {
+					if (ownChannel) outChannel.close();
+					outChannel = null;
+					releaseBuffer();
+					ioState = IOState.CLOSED;
+					throw e;
+				}
+			}
+			// Chunks must be word aligned, so if odd number of audio data bytes
+			// an extra byte is written at the end, going by what was actually written rather than the header
+			if ((blockAlign * frameCounter) % 2 == 1) outChannel.write(ByteBuffer.allocate(1));
+			if (!ownChannel) outChannel.truncate(outChannel.position());	// Anything past the end, such as preallocated space
 
-			offset ++;
-			frameCounter ++;
+			if (numFrames != frameCounter || committed) {
+				numFrames = frameCounter;
+				outChannel.position(0);
+				writeHeader(this, numFrames);
+			}
+
+			if (ownChannel) outChannel.close();
+			outChannel = null;
+			if (levelTap != null && file != null) levelTap.finish(file, validBits);	// Now that the file is complete
+			if (commitError != null) {
+				releaseBuffer();
+				ioState = IOState.CLOSED;
+				throw commitError;
+			}
 		}
 
-		return numFramesToWrite;
+		releaseBuffer();
+		ioState = IOState.CLOSED;		// Flag that the stream is closed
 	}
 
+	/**
+	 * check that other has the same sample layout as this, so raw data can be copied between them as is
+	 * @param other
+	 * @return
+	 */
+	public boolean isCompatible(WavFile other)
+	{
+		return format == other.format && numChannels == other.numChannels && validBits == other.validBits
+				&& blockAlign == other.blockAlign && sampleRate == other.sampleRate;
+	}
 
-	public void close() throws IOException
+	/**
+	 * copy a range of frames straight from this file's data chunk onto the end of target's with
+	 * FileChannel.transferTo(), so that nothing is decoded or re-encoded and the data needn't pass through user
+	 * space at all. This file's own read position is unaffected
+	 * @param startFrame
+	 * @param numFramesToTransfer
+	 * @param target open for writing, and compatible with this
+	 * @return the number of frames transferred, fewer than asked for if either file runs out
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	public long transferFrames(long startFrame, long numFramesToTransfer, WavFile target) throws IOException, AudioFileException
 	{
-		if (iStream != null){	// Close the input stream and set to null
-			iStream.close();
-			iStream = null;
+		if (ioState != IOState.READING) throw new IOException("Cannot read from WavFile instance");
+		if (target.ioState != IOState.WRITING) throw new IOException("Cannot write to WavFile instance");
+		if (!isCompatible(target)) throw new AudioFileException("Wav transfer, sample formats do not match");
+		if (startFrame < 0 || startFrame > numFrames) throw new AudioFileException("Wav transfer, invalid start frame requested");
+
+		long frames = Math.min(Math.min(numFramesToTransfer, numFrames - startFrame), target.numFrames - target.frameCounter);
+		if (target.bufferPointer > 0) target.flushBuffer();
+		if (target.writeBehind != null) target.writeBehind.sync();
+
+		FileChannel src = inChannel;
+		FileChannel dst = target.outChannel;
+		long position = dataStart + startFrame * blockAlign;
+		long bytesLeft = frames * blockAlign;
+		if (target.levelTap != null) tap(position, bytesLeft, target.levelTap);
+		while (bytesLeft > 0) {
+			long n = src.transferTo(position, bytesLeft, dst);
+			if (n <= 0) throw new AudioFileException("Not enough data available");
+			position += n;
+			bytesLeft -= n;
 		}
+		if (target.headerCommit != null) target.headerCommit.wrote(frames * blockAlign);
+		target.frameCounter += frames;
+		return frames;
+	}
 
-		if (oStream != null) {			
-			if (bufferPointer > 0) oStream.write(buffer, 0, bufferPointer); // Write out anything still in the local buffer
-			if (wordAlignAdjust) oStream.write(0); // If an extra byte is required for word alignment, add it to the end
-
-			if (numFrames != frameCounter) {
-				numFrames = frameCounter;
-				FileChannel c = oStream.getChannel();
-				c.position(0);
-				writeHeader(this);
+	/**
+	 * show the data a transfer is about to copy to a target's tap, as it never passes through the target's buffer
+	 */
+	private void tap(long position, long numBytes, LevelTap tap) throws IOException, AudioFileException
+	{
+		FileChannel c = inChannel;
+		ByteBuffer bb = positionalBuffer.get();
+		while (numBytes > 0) {
+			bb.clear();
+			bb.limit((int) Math.min(bb.capacity(), numBytes));
+			while (bb.hasRemaining()) {
+				if (c.read(bb, position + bb.position()) < 0) throw new AudioFileException("Not enough data available");
 			}
+			tap.add(bb, 0, bb.limit());
+			position += bb.limit();
+			numBytes -= bb.limit();
+		}
+	}
 
-			oStream.close();
-			oStream = null;
+	/**
+	 * write a range of frames from source into a new file, only generating a new header
+	 * @param source
+	 * @param startFrame
+	 * @param numFrames
+	 * @param destination
+	 * @return the number of frames extracted
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	public static long extract(File source, long startFrame, long numFrames, File destination) throws IOException, AudioFileException
+	{
+		WavFile src = new WavFile();
+		WavFile dst = new WavFile();
+		try {
+			src.open(source);
+			if (startFrame < 0 || startFrame > src.numFrames) throw new AudioFileException("Wav extract, invalid start frame requested");
+			long frames = Math.min(numFrames, src.numFrames - startFrame);
+			dst.setExtensible(src.extensible? src.bytesPerSample * 8 : 0, src.channelMask);
+			dst.create(destination, src.numChannels, frames, src.validBits, src.sampleRate, src.format);
+			return src.transferFrames(startFrame, frames, dst);
+		} finally {
+			src.close();
+			dst.close();
 		}
+	}
 
-		ioState = IOState.CLOSED;		// Flag that the stream is closed
+	/**
+	 * join the data of a list of compatible files into a new file, only generating a new header
+	 * @param sources
+	 * @param destination
+	 * @return the total number of frames written
+	 * @throws IOException
+	 * @throws AudioFileException if the sources are not all compatible
+	 */
+	public static long concatenate(File[] sources, File destination) throws IOException, AudioFileException
+	{
+		if (sources.length == 0) throw new AudioFileException("Wav concatenate, no source files");
+
+		// check everything before creating anything
+		WavFile first = new WavFile();
+		WavFile src = new WavFile();
+		long frames = 0;
+		try {
+			first.open(sources[0]);
+			frames = first.numFrames;
+			for (int i=1 ; i<sources.length ; i++) {
+				src.open(sources[i]);
+				if (!first.isCompatible(src)) throw new AudioFileException("Wav concatenate, " + sources[i] + " does not match the format of " + sources[0]);
+				frames += src.numFrames;
+				src.close();
+			}
+		} finally {
+			first.close();
+			src.close();
+		}
+
+		WavFile dst = new WavFile();
+		try {
+			dst.setExtensible(first.extensible? first.bytesPerSample * 8 : 0, first.channelMask);
+			dst.create(destination, first.numChannels, frames, first.validBits, first.sampleRate, first.format);
+			for (File source: sources) {
+				src.open(source);
+				src.transferFrames(0, src.numFrames, dst);
+				src.close();
+			}
+		} finally {
+			src.close();
+			dst.close();
+		}
+		return frames;
 	}
 
 	@Override
@@ -0,0 +1,360 @@
+package com.openavionics.utils.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import static com.openavionics.utils.file.WavFile.BW64_CHUNK_ID;
+import static com.openavionics.utils.file.WavFile.DATA_CHUNK_ID;
+import static com.openavionics.utils.file.WavFile.DS64_CHUNK_ID;
+import static com.openavionics.utils.file.WavFile.FMT_CHUNK_ID;
+import static com.openavionics.utils.file.WavFile.JUNK_CHUNK_ID;
+import static com.openavionics.utils.file.WavFile.RF64_CHUNK_ID;
+import static com.openavionics.utils.file.WavFile.RIFF_CHUNK_ID;
+import static com.openavionics.utils.file.WavFile.RIFF_TYPE_ID;
+import static com.openavionics.utils.file.WavFile.WAV_FORMAT_ALAW;
+import static com.openavionics.utils.file.WavFile.WAV_FORMAT_EXTENSIBLE;
+import static com.openavionics.utils.file.WavFile.WAV_FORMAT_IEEE_FLOAT;
+import static com.openavionics.utils.file.WavFile.WAV_FORMAT_MULAW;
+import static com.openavionics.utils.file.WavFile.WAV_FORMAT_PCM;
+import static com.openavionics.utils.file.WavFile.getLE;
+import static com.openavionics.utils.file.WavFile.putLE;
+
+/**
+ * The RIFF, fmt and data chunk headers of a wave file, read from the front of a channel that may not be seekable,
+ * and the layout of the header the library writes. WavFile, WavInfo and WavStreamReader all parse headers here.
+ */
+class WavHeader
+{
+	final static long UNKNOWN_LENGTH = 0xFFFFFFFFL;	// Chunk size written when the length isn't known up front
+	final static int DS64_SIZE = 28;				// RIFF and data sizes, sample count and an empty table
+	final static int EXTENSIBLE_FMT_SIZE = 40;		// fmt chunk with the WAVE_FORMAT_EXTENSIBLE extension
+	final static int MAX_LENGTH = 12 + 8 + DS64_SIZE + 8 + EXTENSIBLE_FMT_SIZE + 8;	// Longest header put() writes
+	private final static long MAX_RIFF_SIZE = 0xFFFFFFFEL;	// Largest size a plain RIFF chunk can give
+
+	// KSDATAFORMAT_SUBTYPE_.. GUIDs are the format code followed by these bytes
+	private final static byte[] SUBFORMAT_GUID = {0x00, 0x00, 0x00, 0x00, 0x10, 0x00, (byte) 0x80, 0x00, 0x00, (byte) 0xAA, 0x00, 0x38, (byte) 0x9B, 0x71};
+
+	int format;				// For WAVE_FORMAT_EXTENSIBLE, the format of the SubFormat
+	int numChannels;
+	long sampleRate;
+	int blockAlign;
+	int validBits;
+	int bytesPerSample;		// Container size, which only WAVE_FORMAT_EXTENSIBLE can make more than validBits need
+	boolean extensible;
+	int channelMask;		// Speaker positions of WAVE_FORMAT_EXTENSIBLE, 0 if not given
+	long riffChunkSize;
+	long dataChunkSize;		// -1 if the header doesn't say, as written to a stream
+	long dataStart;			// Offset of the sample data from the start of the channel
+
+	/**
+	 * A block read from the front of a file in one go, which the header is parsed from, going back to the file only
+	 * for anything past the end of the block. skipping a chunk is just a move.
+	 */
+	private static class Prefetched implements ReadableByteChannel
+	{
+		private final FileChannel file;
+		private final byte[] block;
+		private final int length;
+		private long position;
+
+		Prefetched(FileChannel file, byte[] block) throws IOException
+		{
+			this.file = file;
+			this.block = block;
+			ByteBuffer bb = ByteBuffer.wrap(block);
+			while (bb.hasRemaining()) {
+				if (file.read(bb, bb.position()) < 0) break;
+			}
+			this.length = bb.position();
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException
+		{
+			int n;
+			if (position < length) {
+				n = Math.min(dst.remaining(), length - (int) position);
+				dst.put(block, (int) position, n);
+			} else {
+				n = file.read(dst, position);
+				if (n < 0) return n;
+			}
+			position += n;
+			return n;
+		}
+
+		void skip(long n)
+		{
+			position += n;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return file.isOpen();
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+
+	/**
+	 * read the header from the start of a file with as few reads as possible: one, unless chunks before the data
+	 * run past the end of the block
+	 * @param in
+	 * @param block to read the start of the file into, a few KB
+	 * @param scratch at least 64 bytes
+	 * @return
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	static WavHeader read(FileChannel in, byte[] block, byte[] scratch) throws IOException, AudioFileException
+	{
+		return read(new Prefetched(in, block), scratch);
+	}
+
+	/**
+	 * read up to the start of the sample data, skipping any chunks before it, and without reading any further
+	 * @param in positioned at the start of the file
+	 * @param scratch at least 64 bytes, in which it is read
+	 * @return
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	static WavHeader read(ReadableByteChannel in, byte[] scratch) throws IOException, AudioFileException
+	{
+		WavHeader h = new WavHeader();
+		ByteBuffer bb = ByteBuffer.wrap(scratch);
+
+		if (!readFully(in, bb, 12)) throw new AudioFileException("Not enough wav file bytes for header");
+		long riffChunkID = getLE(scratch, 0, 4);
+		boolean rf64 = riffChunkID == RF64_CHUNK_ID || riffChunkID == BW64_CHUNK_ID;
+		if (riffChunkID != RIFF_CHUNK_ID && !rf64) throw new AudioFileException("Invalid Wav Header data, incorrect riff chunk ID");
+		if (getLE(scratch, 8, 4) != RIFF_TYPE_ID) throw new AudioFileException("Invalid Wav Header data, incorrect riff type ID");
+		h.riffChunkSize = getLE(scratch, 4, 4);
+		long position = 12;
+		long ds64DataSize = -1;
+
+		// RF64 and BW64 give the 64 bit sizes in a ds64 chunk, which has to come first
+		if (rf64) {
+			if (!readFully(in, bb, 8) || getLE(scratch, 0, 4) != DS64_CHUNK_ID) throw new AudioFileException("RF64 file without a ds64 chunk");
+			long chunkSize = getLE(scratch, 4, 4);
+			if (chunkSize < 16 || !readFully(in, bb, 16)) throw new AudioFileException("Could not read ds64 chunk");
+			h.riffChunkSize = getLE(scratch, 0, 8);
+			ds64DataSize = getLE(scratch, 8, 8);
+			long numChunkBytes = ((chunkSize%2 == 1) ? chunkSize+1 : chunkSize) - 16;
+			skip(in, bb, numChunkBytes);
+			position += 8 + 16 + numChunkBytes;
+		}
+
+		boolean foundFormat = false;
+		while (true) {
+			if (!readFully(in, bb, 8)) throw new AudioFileException("Reached end of file without finding data chunk");
+			long chunkID = getLE(scratch, 0, 4);
+			long chunkSize = getLE(scratch, 4, 4);
+			position += 8;
+
+			if (chunkID == DATA_CHUNK_ID) {
+				if (!foundFormat) throw new AudioFileException("Data chunk found before Format chunk");
+				if (chunkSize == UNKNOWN_LENGTH && ds64DataSize >= 0) chunkSize = ds64DataSize;
+				h.dataChunkSize = chunkSize == UNKNOWN_LENGTH? -1 : chunkSize;		// 0 is an empty recording, not an unknown one
+				h.dataStart = position;
+				return h;
+			}
+
+			// Word align the chunk size
+			long numChunkBytes = (chunkSize%2 == 1) ? chunkSize+1 : chunkSize;
+			if (chunkID == FMT_CHUNK_ID) {
+				int n = (int) Math.min(chunkSize, EXTENSIBLE_FMT_SIZE);
+				if (chunkSize < 16 || !readFully(in, bb, n)) throw new AudioFileException("Could not read format chunk");
+				h.readFormat(scratch, n);
+				foundFormat = true;
+				numChunkBytes -= n;
+				position += n;
+			}
+			skip(in, bb, numChunkBytes);
+			position += numChunkBytes;
+		}
+	}
+
+	/**
+	 * take the fields of a fmt chunk, including the WAVE_FORMAT_EXTENSIBLE extension, and check them
+	 * @param src the start of the chunk's data
+	 * @param length of it in src, at least 16, and up to EXTENSIBLE_FMT_SIZE
+	 * @throws AudioFileException
+	 */
+	void readFormat(byte[] src, int length) throws AudioFileException
+	{
+		format = (int) getLE(src, 0, 2);
+		numChannels = (int) getLE(src, 2, 2);
+		sampleRate = getLE(src, 4, 4);
+		blockAlign = (int) getLE(src, 12, 2);
+		validBits = (int) getLE(src, 14, 2);
+		extensible = false;
+		channelMask = 0;
+
+		if (format == WAV_FORMAT_EXTENSIBLE) {
+			// wBitsPerSample is the container size, and the extension has the valid bits and the real format
+			if (length < EXTENSIBLE_FMT_SIZE || getLE(src, 16, 2) < 22) throw new AudioFileException("Extensible format chunk is too short");
+			int containerBits = validBits;
+			if (containerBits % 8 != 0) throw new AudioFileException("Extensible container size " + containerBits + " is not a whole number of bytes");
+			int valid = (int) getLE(src, 18, 2);
+			channelMask = (int) getLE(src, 20, 4);
+			format = (int) getLE(src, 24, 2);
+			for (int i=0 ; i<SUBFORMAT_GUID.length ; i++) {
+				if (src[26 + i] != SUBFORMAT_GUID[i]) throw new AudioFileException("Wav SubFormat GUID not supported");
+			}
+			validBits = valid == 0? containerBits : valid;
+			if (validBits > containerBits) throw new AudioFileException("Valid Bits specified in header is greater than the container size");
+			bytesPerSample = containerBits / 8;
+			extensible = true;
+		}
+		check();
+	}
+
+	/**
+	 * check the format is one the codecs can read, and that its fields agree with each other
+	 */
+	void check() throws AudioFileException
+	{
+		if (format != WAV_FORMAT_PCM && format != WAV_FORMAT_IEEE_FLOAT && format != WAV_FORMAT_MULAW && format != WAV_FORMAT_ALAW) {
+			throw new AudioFileException("Wav format " + format + " not supported");
+		}
+		if (numChannels == 0) throw new AudioFileException("Number of channels specified in header is equal to zero");
+		if (blockAlign == 0) throw new AudioFileException("Block Align specified in header is equal to zero");
+		if (validBits < 2) throw new AudioFileException("Valid Bits specified in header is less than 2");
+		if (validBits > 64) throw new AudioFileException("Valid Bits specified in header is greater than 64, this is greater than a long can hold");
+		if (!extensible) bytesPerSample = (validBits + 7) / 8;
+		if (bytesPerSample * numChannels != blockAlign)
+			throw new AudioFileException("Block Align does not agree with bytes required for validBits and number of channels");
+	}
+
+	/**
+	 * @return false if the channel ends before n bytes
+	 */
+	private static boolean readFully(ReadableByteChannel in, ByteBuffer bb, int n) throws IOException
+	{
+		bb.clear();
+		bb.limit(n);
+		while (bb.hasRemaining()) {
+			if (in.read(bb) < 0) return false;
+		}
+		return true;
+	}
+
+	private static void skip(ReadableByteChannel in, ByteBuffer bb, long n) throws IOException, AudioFileException
+	{
+		if (in instanceof Prefetched) {
+			((Prefetched) in).skip(n);
+			return;
+		}
+		while (n > 0) {
+			int chunk = (int) Math.min(n, bb.capacity());
+			if (!readFully(in, bb, chunk)) throw new AudioFileException("Could not skip chunk");
+			n -= chunk;
+		}
+	}
+
+	/**
+	 * @return true if a RIFF chunk holding a data chunk this long might be too big for its 32 bit size
+	 */
+	static boolean needsDs64(long dataChunkSize)
+	{
+		// The longest header there is, with room for ds64, and a word align byte
+		return MAX_LENGTH - 8 + dataChunkSize + 1 > MAX_RIFF_SIZE;
+	}
+
+	/**
+	 * lay out the RIFF, fmt and data chunk headers for the format this holds. the fmt chunk has the
+	 * WAVE_FORMAT_EXTENSIBLE extension if extensible is set, with wBitsPerSample the container size
+	 * @param dst at least MAX_LENGTH bytes
+	 * @param dataChunkSize or UNKNOWN_LENGTH, for a stream whose length isn't known, for which the RIFF chunk size is
+	 *                      also written as UNKNOWN_LENGTH
+	 * @param reserveDs64 leave room after the RIFF header for a ds64 chunk, so the header can become RF64 in place
+	 *                    once it is known whether the data fits in 4GB. until it is needed, the room is a JUNK chunk
+	 * @return length of the header
+	 */
+	int put(byte[] dst, long dataChunkSize, boolean reserveDs64)
+	{
+		// Calculate the chunk sizes
+		int wavFormatChunkLen = extensible? EXTENSIBLE_FMT_SIZE : (format == WAV_FORMAT_PCM)? 16 : 18;
+		int reserved = reserveDs64? 8 + DS64_SIZE : 0;
+		long mainChunkSize =	4 +	// Riff Type
+									reserved +	// ds64 or JUNK
+									8 +	// Format ID and size
+									wavFormatChunkLen +	// Format data
+									8 + 	// Data ID and size
+									dataChunkSize;
+
+		// Chunks must be word aligned, so if odd number of audio data bytes
+		// adjust the main chunk size
+		if (dataChunkSize % 2 == 1) mainChunkSize += 1;
+		if (dataChunkSize == UNKNOWN_LENGTH) mainChunkSize = UNKNOWN_LENGTH;
+		boolean rf64 = reserveDs64 && mainChunkSize > MAX_RIFF_SIZE;
+
+		// Set the main chunk size
+		putLE(rf64? RF64_CHUNK_ID : RIFF_CHUNK_ID,	dst, 0, 4);
+		putLE(rf64? UNKNOWN_LENGTH : mainChunkSize,	dst, 4, 4);
+		putLE(RIFF_TYPE_ID,	dst, 8, 4);
+		if (rf64) {
+			putLE(DS64_CHUNK_ID, dst, 12, 4);
+			putLE(DS64_SIZE, dst, 16, 4);
+			putLE(mainChunkSize, dst, 20, 8);		// RIFF size
+			putLE(dataChunkSize, dst, 28, 8);		// data size
+			putLE(dataChunkSize / blockAlign, dst, 36, 8);	// Sample count
+			putLE(0, dst, 44, 4);					// No table of other chunk sizes
+		} else if (reserveDs64) {
+			putLE(JUNK_CHUNK_ID, dst, 12, 4);
+			putLE(DS64_SIZE, dst, 16, 4);
+			for (int i=20 ; i<20+DS64_SIZE ; i++) dst[i] = 0;
+		}
+		int pos = 12 + reserved;
+/*
+fact Chunk
+
+All (compressed) non-PCM formats must have a fact chunk (Rev. 3 documentation).
+The chunk contains at least one value, the number of samples in the file.
+Field 	Length 	Contents
+ckID 	4 	Chunk ID: "fact"
+cksize 	4 	Chunk size: minimum 4
+dwSampleLength 	4 	Number of samples (per channel)
+
+The Rev. 3 documentation states that the Fact chunk "is required for all new new WAVE formats",
+but "is not required" for the standard WAVE_FORMAT_PCM file.
+One presumes that files with IEEE float data (introduced after the Rev. 3 documention) need a fact chunk.
+*/
+		// Put format data in buffer
+		long averageBytesPerSecond = sampleRate * blockAlign;
+
+		putLE(FMT_CHUNK_ID, dst, pos, 4);        // Chunk ID
+		putLE(wavFormatChunkLen, dst, pos + 4, 4);        			// Chunk Data Size
+		putLE(extensible? WAV_FORMAT_EXTENSIBLE : format, dst, pos + 8, 2);        // Compression Code (Uncompressed)
+		putLE(numChannels, dst, pos + 10, 2);	// Number of channels
+		putLE(sampleRate, dst, pos + 12, 4);	// Sample Rate
+		putLE(averageBytesPerSecond, dst, pos + 16, 4);	// Average Bytes Per Second
+		putLE(blockAlign, dst, pos + 20, 2);	// Block Align
+		if (extensible) {
+			putLE(bytesPerSample * 8, dst, pos + 22, 2);	// Container size
+			putLE(22, dst, pos + 24, 2);			// Extension size
+			putLE(validBits, dst, pos + 26, 2);		// Valid Bits
+			putLE(channelMask, dst, pos + 28, 4);	// Speaker positions
+			putLE(format, dst, pos + 32, 2);		// SubFormat GUID
+			System.arraycopy(SUBFORMAT_GUID, 0, dst, pos + 34, SUBFORMAT_GUID.length);
+		} else {
+			putLE(validBits, dst, pos + 22, 2);	// Valid Bits
+			if (format != WAV_FORMAT_PCM) {
+				putLE(0, dst, pos + 24, 2);
+			}
+		}
+		pos += 8 + wavFormatChunkLen;
+
+		// Start Data Chunk
+		putLE(DATA_CHUNK_ID, dst, pos, 4);		// Chunk ID
+		putLE(rf64? UNKNOWN_LENGTH : dataChunkSize, dst, pos + 4, 4);		// Chunk Data Size
+		return pos + 8;
+	}
+}
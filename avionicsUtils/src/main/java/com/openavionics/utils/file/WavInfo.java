@@ -0,0 +1,168 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * What the header of a wave file says, for listing large numbers of files. probe() reads only the RIFF, fmt and
+ * data chunk headers, normally in a single read, without creating a WavFile or any of its buffers, and the result
+ * is immutable, so it can be kept and shared freely.
+ *
+ * The number of frames is what the file actually holds, so a recording that was never closed, whose header
+ * still gives no length, or one cut short, reports the frames it has rather than failing.
+ */
+public final class WavInfo
+{
+	private final static int PROBE_SIZE = 4096;	// Enough for the header, and whatever chunks usually come before the data
+
+	// Per thread, and only ever used here
+	private final static ThreadLocal<byte[]> probeBlock = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[PROBE_SIZE];
+		}
+	};
+
+	private final File file;
+	private final long fileLength;
+	private final int format;
+	private final int numChannels;
+	private final long sampleRate;
+	private final int validBits;
+	private final int blockAlign;
+	private final int bytesPerSample;
+	private final boolean extensible;
+	private final int channelMask;
+	private final long dataStart;
+	private final long numFrames;
+
+	WavInfo(File file, long fileLength, int format, int numChannels, long sampleRate, int validBits, int blockAlign,
+			int bytesPerSample, boolean extensible, int channelMask, long dataStart, long numFrames)
+	{
+		this.file = file;
+		this.fileLength = fileLength;
+		this.format = format;
+		this.numChannels = numChannels;
+		this.sampleRate = sampleRate;
+		this.validBits = validBits;
+		this.blockAlign = blockAlign;
+		this.bytesPerSample = bytesPerSample;
+		this.extensible = extensible;
+		this.channelMask = channelMask;
+		this.dataStart = dataStart;
+		this.numFrames = numFrames;
+	}
+
+	/**
+	 * read the header of a wave file
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 * @throws AudioFileException if it isn't a wave file the library can read
+	 */
+	public static WavInfo probe(File file) throws IOException, AudioFileException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel c = in.getChannel();
+			WavHeader h = WavHeader.read(c, probeBlock.get(), new byte[64]);
+			long length = c.size();
+			long dataLength = Math.max(0, length - h.dataStart);
+			if (h.dataChunkSize >= 0) dataLength = Math.min(dataLength, h.dataChunkSize);
+			return new WavInfo(file, length, h.format, h.numChannels, h.sampleRate, h.validBits, h.blockAlign,
+					h.bytesPerSample, h.extensible, h.channelMask, h.dataStart, dataLength / h.blockAlign);
+		} finally {
+			in.close();
+		}
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public long getFileLength()
+	{
+		return fileLength;
+	}
+
+	/**
+	 * @return one of the WAV_FORMAT.. constants
+	 */
+	public int getFormat()
+	{
+		return format;
+	}
+
+	public int getNumChannels()
+	{
+		return numChannels;
+	}
+
+	public long getSampleRate()
+	{
+		return sampleRate;
+	}
+
+	public int getValidBits()
+	{
+		return validBits;
+	}
+
+	public int getBlockAlign()
+	{
+		return blockAlign;
+	}
+
+	/**
+	 * @return size of the container each sample is in, which only WAVE_FORMAT_EXTENSIBLE can make more than the
+	 * valid bits need
+	 */
+	public int getBytesPerSample()
+	{
+		return bytesPerSample;
+	}
+
+	/**
+	 * @return true if the fmt chunk is WAVE_FORMAT_EXTENSIBLE, in which case getFormat() is that of its SubFormat
+	 */
+	public boolean isExtensible()
+	{
+		return extensible;
+	}
+
+	/**
+	 * @return speaker positions of a WAVE_FORMAT_EXTENSIBLE file, 0 if it doesn't give them or isn't one
+	 */
+	public int getChannelMask()
+	{
+		return channelMask;
+	}
+
+	/**
+	 * @return offset of the sample data in the file
+	 */
+	public long getDataStart()
+	{
+		return dataStart;
+	}
+
+	public long getNumFrames()
+	{
+		return numFrames;
+	}
+
+	public double getDurationSeconds()
+	{
+		return sampleRate > 0? (double) numFrames / sampleRate : 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s: %d channels, %d bits, %d Hz, %d frames", file, numChannels, validBits, sampleRate, numFrames);
+	}
+}
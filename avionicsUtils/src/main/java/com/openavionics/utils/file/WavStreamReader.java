@@ -0,0 +1,179 @@
+package com.openavionics.utils.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a wave file front to back from a stream that can't seek, such as a pipe or socket. If the header gives the
+ * length of the data, reading stops there, else, as written by WavStreamWriter, it runs to the end of the stream,
+ * dropping any partial frame at the very end.
+ */
+public class WavStreamReader
+{
+	private final ReadableByteChannel in;
+	private final WavHeader header;
+	private final SampleCodec codec;
+	private ByteBuffer buffer;				// Data read but not yet decoded, between position and limit
+	private long dataLeft;					// Bytes of the data chunk not yet read into buffer, -1 to the end of the stream
+	private boolean endOfStream;
+	private long framesRead;
+
+	public WavStreamReader(InputStream in) throws IOException, AudioFileException
+	{
+		this(Channels.newChannel(in));
+	}
+
+	/**
+	 * read the header straight away
+	 * @param in
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	public WavStreamReader(ReadableByteChannel in) throws IOException, AudioFileException
+	{
+		this.in = in;
+		buffer = BufferPool.acquire(WavFile.getDefaultBufferSize(), false);
+		try {
+			header = WavHeader.read(in, buffer.array());
+			codec = WavFile.readCodec(header.format, header.bytesPerSample, header.validBits, header.extensible);
+		} catch (IOException e) {
+			BufferPool.release(buffer);
+			throw e;
+		} catch (AudioFileException e) {
+			BufferPool.release(buffer);
+			throw e;
+		}
+		if (buffer.capacity() < header.blockAlign) {
+			BufferPool.release(buffer);
+			buffer = BufferPool.acquire(header.blockAlign, false);
+		}
+		dataLeft = header.dataChunkSize;
+		buffer.clear();
+		buffer.limit(0);
+	}
+
+	public int getNumChannels()
+	{
+		return header.numChannels;
+	}
+
+	public long getSampleRate()
+	{
+		return header.sampleRate;
+	}
+
+	public int getValidBits()
+	{
+		return header.validBits;
+	}
+
+	public int getFormat()
+	{
+		return header.format;
+	}
+
+	/**
+	 * @return number of frames given in the header, or -1 if it doesn't say
+	 */
+	public long getNumFrames()
+	{
+		return header.dataChunkSize < 0? -1 : header.dataChunkSize / header.blockAlign;
+	}
+
+	public long getFramesRead()
+	{
+		return framesRead;
+	}
+
+	public int readFrames(short[] sampleBuffer, int offset, int numFramesToRead) throws IOException
+	{
+		return read(sampleBuffer, offset, numFramesToRead);
+	}
+
+	public int readFrames(int[] sampleBuffer, int offset, int numFramesToRead) throws IOException
+	{
+		return read(sampleBuffer, offset, numFramesToRead);
+	}
+
+	public int readFrames(long[] sampleBuffer, int offset, int numFramesToRead) throws IOException
+	{
+		return read(sampleBuffer, offset, numFramesToRead);
+	}
+
+	public int readFrames(float[] sampleBuffer, int offset, int numFramesToRead) throws IOException
+	{
+		return read(sampleBuffer, offset, numFramesToRead);
+	}
+
+	public int readFrames(double[] sampleBuffer, int offset, int numFramesToRead) throws IOException
+	{
+		return read(sampleBuffer, offset, numFramesToRead);
+	}
+
+	/**
+	 * raw sample data in the file's own layout, into the buffer from its position, which is advanced past it
+	 */
+	public int readFrames(ByteBuffer sampleBuffer, int numFramesToRead) throws IOException
+	{
+		int framesToRead = Math.min(numFramesToRead, sampleBuffer.remaining() / header.blockAlign);
+		int framesRead = 0;
+		while (framesRead < framesToRead) {
+			int n = Math.min(framesToRead - framesRead, fill());
+			if (n == 0) break;
+			int limit = buffer.limit();
+			buffer.limit(buffer.position() + n * header.blockAlign);
+			sampleBuffer.put(buffer);
+			buffer.limit(limit);
+			framesRead += n;
+		}
+		this.framesRead += framesRead;
+		return framesRead;
+	}
+
+	private int read(Object sampleBuffer, int offset, int numFramesToRead) throws IOException
+	{
+		int framesRead = 0;
+		while (framesRead < numFramesToRead) {
+			int n = Math.min(numFramesToRead - framesRead, fill());
+			if (n == 0) break;
+			codec.decode(buffer, buffer.position(), header.bytesPerSample, sampleBuffer, offset, n * header.numChannels);
+			buffer.position(buffer.position() + n * header.blockAlign);
+			offset += n * header.numChannels;
+			framesRead += n;
+		}
+		this.framesRead += framesRead;
+		return framesRead;
+	}
+
+	/**
+	 * make sure there is at least one whole frame in the buffer, unless the data has run out
+	 * @return number of whole frames in the buffer
+	 */
+	private int fill() throws IOException
+	{
+		if (buffer == null) throw new IOException("Cannot read from closed WavStreamReader");
+		while (buffer.remaining() < header.blockAlign && !endOfStream && dataLeft != 0) {
+			buffer.compact();
+			if (dataLeft > 0 && dataLeft < buffer.remaining()) buffer.limit((int) (buffer.position() + dataLeft));
+			int n = in.read(buffer);
+			if (n < 0) {
+				endOfStream = true;
+			} else if (dataLeft > 0) {
+				dataLeft -= n;
+			}
+			buffer.flip();
+		}
+		return buffer.remaining() / header.blockAlign;
+	}
+
+	public void close() throws IOException
+	{
+		if (buffer == null) return;
+		BufferPool.release(buffer);
+		buffer = null;
+		in.close();
+	}
+}
@@ -0,0 +1,167 @@
+package com.openavionics.utils.file;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes a wave file to a stream that can't seek back to patch the header, such as a pipe or socket. The header is
+ * written up front with the streaming convention of UNKNOWN_LENGTH, 0xFFFFFFFF, for the RIFF and data chunk sizes,
+ * which readers take to mean that the data runs to the end of the stream. WavFile.open() of a file saved from it
+ * takes the whole frames up to the end of the file.
+ */
+public class WavStreamWriter
+{
+	private final WritableByteChannel out;
+	private final int numChannels;
+	private final int bytesPerSample;
+	private final int blockAlign;
+	private final SampleCodec codec;
+	private ByteBuffer buffer;				// Borrowed from the BufferPool until close()
+	private long framesWritten;
+
+	public WavStreamWriter(OutputStream out, int numChannels, int validBits, long sampleRate) throws IOException, AudioFileException
+	{
+		this(Channels.newChannel(out), numChannels, validBits, sampleRate, WavFile.WAV_FORMAT_PCM);
+	}
+
+	public WavStreamWriter(OutputStream out, int numChannels, int validBits, long sampleRate, int format) throws IOException, AudioFileException
+	{
+		this(Channels.newChannel(out), numChannels, validBits, sampleRate, format);
+	}
+
+	/**
+	 * write the header straight away
+	 * @param out
+	 * @param numChannels
+	 * @param validBits
+	 * @param sampleRate
+	 * @param format one of the WAV_FORMAT.. constants
+	 * @throws IOException
+	 * @throws AudioFileException
+	 */
+	public WavStreamWriter(WritableByteChannel out, int numChannels, int validBits, long sampleRate, int format) throws IOException, AudioFileException
+	{
+		if (numChannels < 1 || numChannels > 65535) throw new AudioFileException("Illegal number of channels, valid range 1 to 65536");
+		if (validBits < 2 || validBits > 65535) throw new AudioFileException("Illegal number of valid bits, valid range 2 to 65536");
+		if (sampleRate < 0) throw new AudioFileException("Sample rate must be positive");
+
+		this.out = out;
+		this.numChannels = numChannels;
+		this.bytesPerSample = (validBits + 7) / 8;
+		this.blockAlign = bytesPerSample * numChannels;
+		this.codec = WavFile.writeCodec(format, bytesPerSample, validBits);
+
+		buffer = BufferPool.acquire(Math.max(WavFile.getDefaultBufferSize(), blockAlign), false);
+		WavHeader header = new WavHeader();
+		header.format = format;
+		header.numChannels = numChannels;
+		header.sampleRate = sampleRate;
+		header.blockAlign = blockAlign;
+		header.validBits = validBits;
+		header.bytesPerSample = bytesPerSample;
+		int length = header.put(buffer.array(), WavHeader.UNKNOWN_LENGTH, false);
+		buffer.position(length);
+		flush();
+	}
+
+	public int getNumChannels()
+	{
+		return numChannels;
+	}
+
+	public long getFramesWritten()
+	{
+		return framesWritten;
+	}
+
+	public int writeFrames(short[] sampleBuffer, int offset, int numFramesToWrite) throws IOException
+	{
+		return write(sampleBuffer, offset, numFramesToWrite);
+	}
+
+	public int writeFrames(int[] sampleBuffer, int offset, int numFramesToWrite) throws IOException
+	{
+		return write(sampleBuffer, offset, numFramesToWrite);
+	}
+
+	public int writeFrames(long[] sampleBuffer, int offset, int numFramesToWrite) throws IOException
+	{
+		return write(sampleBuffer, offset, numFramesToWrite);
+	}
+
+	public int writeFrames(float[] sampleBuffer, int offset, int numFramesToWrite) throws IOException
+	{
+		return write(sampleBuffer, offset, numFramesToWrite);
+	}
+
+	public int writeFrames(double[] sampleBuffer, int offset, int numFramesToWrite) throws IOException
+	{
+		return write(sampleBuffer, offset, numFramesToWrite);
+	}
+
+	/**
+	 * raw sample data in the file's own layout, from the buffer's position, which is advanced past it
+	 */
+	public int writeFrames(ByteBuffer sampleBuffer, int numFramesToWrite) throws IOException
+	{
+		if (buffer == null) throw new IOException("Cannot write to closed WavStreamWriter");
+		int framesToWrite = Math.min(numFramesToWrite, sampleBuffer.remaining() / blockAlign);
+		flush();
+		int limit = sampleBuffer.limit();
+		sampleBuffer.limit(sampleBuffer.position() + framesToWrite * blockAlign);
+		try {
+			while (sampleBuffer.hasRemaining()) out.write(sampleBuffer);
+		} finally {
+			sampleBuffer.limit(limit);
+		}
+		framesWritten += framesToWrite;
+		return framesToWrite;
+	}
+
+	private int write(Object sampleBuffer, int offset, int numFramesToWrite) throws IOException
+	{
+		if (buffer == null) throw new IOException("Cannot write to closed WavStreamWriter");
+		int framesLeft = numFramesToWrite;
+		while (framesLeft > 0) {
+			if (buffer.remaining() < blockAlign) flush();
+			int n = Math.min(framesLeft, buffer.remaining() / blockAlign);
+			codec.encode(sampleBuffer, offset, buffer, buffer.position(), bytesPerSample, n * numChannels);
+			buffer.position(buffer.position() + n * blockAlign);
+			offset += n * numChannels;
+			framesLeft -= n;
+		}
+		framesWritten += numFramesToWrite;
+		return numFramesToWrite;
+	}
+
+	/**
+	 * write out everything encoded so far
+	 * @throws IOException
+	 */
+	public void flush() throws IOException
+	{
+		if (buffer == null) return;
+		buffer.flip();
+		while (buffer.hasRemaining()) out.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * flush and close the channel. the data isn't word aligned, as a reader would take the extra byte for data
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		if (buffer == null) return;
+		try {
+			flush();
+		} finally {
+			BufferPool.release(buffer);
+			buffer = null;
+			out.close();
+		}
+	}
+}
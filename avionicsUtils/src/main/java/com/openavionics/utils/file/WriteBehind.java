@@ -0,0 +1,185 @@
+package com.openavionics.utils.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Background writer for WavFile's write behind mode. The producer fills one buffer while a dedicated thread
+ * writes out the ones already filled, so disk latency lands on that thread rather than on whoever is calling
+ * writeFrames(). With two buffers this is plain double buffering, more just gives more slack.
+ *
+ * An overrun is when the producer has filled its buffer and there is no free one to swap it for, because the
+ * writer has fallen behind. The producer then has to wait for one, which is what this mode is there to avoid,
+ * so overruns are counted.
+ */
+class WriteBehind implements Runnable
+{
+	static class Buffer
+	{
+		final byte[] data;
+		final ByteBuffer view;	// Little endian view of data, for the sample codec
+		int length;				// Number of bytes filled
+
+		Buffer(ByteBuffer view)
+		{
+			this.data = view.array();
+			this.view = view;
+		}
+	}
+
+	private final static Buffer END = new Buffer(ByteBuffer.allocate(0));
+
+	private final WritableByteChannel out;
+	private final BlockingQueue<Buffer> free;
+	private final BlockingQueue<Buffer> filled;
+	private final Thread thread;
+
+	private int pending;			// guarded by this, buffers submitted and not yet written
+	private boolean closed;
+	private volatile IOException error;
+	private volatile int overruns;
+	private volatile int maxQueueDepth;
+
+	/**
+	 * @param out
+	 * @param numBuffers at least 2
+	 * @param first the producer's own heap buffer, which is handed back by first(). the others are borrowed from
+	 *              the BufferPool, and given back at close(), except for whichever one the producer then holds
+	 */
+	WriteBehind(WritableByteChannel out, int numBuffers, ByteBuffer first)
+	{
+		this.out = out;
+		free = new ArrayBlockingQueue<Buffer>(numBuffers);
+		filled = new ArrayBlockingQueue<Buffer>(numBuffers + 1);
+		free.add(new Buffer(first));
+		for (int i=1 ; i<numBuffers ; i++) free.add(new Buffer(BufferPool.acquire(first.capacity(), false)));
+
+		thread = new Thread(this, "WavFile write behind");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * the first buffer for the producer to fill
+	 * @return
+	 */
+	Buffer first()
+	{
+		return free.poll();
+	}
+
+	/**
+	 * queue a filled buffer to be written, and get an empty one back, waiting for it if there are none
+	 * @param full with length set to the number of bytes to write
+	 * @return
+	 * @throws IOException if an earlier write failed
+	 */
+	Buffer submit(Buffer full) throws IOException
+	{
+		if (error != null) throw new IOException("Write behind failed", error);
+		synchronized (this) {
+			pending++;
+		}
+		filled.add(full);
+		int depth = filled.size();
+		if (depth > maxQueueDepth) maxQueueDepth = depth;
+
+		Buffer b = free.poll();
+		if (b == null) {
+			overruns++;
+			try {
+				b = free.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for write behind");
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * wait until everything submitted so far has been written
+	 * @throws IOException if any of it failed
+	 */
+	void sync() throws IOException
+	{
+		synchronized (this) {
+			try {
+				while (pending > 0) wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for write behind");
+			}
+		}
+		if (error != null) throw new IOException("Write behind failed", error);
+	}
+
+	/**
+	 * write out everything submitted so far, stop the thread, and give back the buffers the producer doesn't hold
+	 * @throws IOException if any of the writes failed
+	 */
+	void close() throws IOException
+	{
+		if (!closed) {
+			closed = true;
+			filled.add(END);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for write behind");
+			}
+			Buffer b;
+			while ((b = free.poll()) != null) BufferPool.release(b.view);
+		}
+		if (error != null) throw new IOException("Write behind failed", error);
+	}
+
+	int getOverruns()
+	{
+		return overruns;
+	}
+
+	int getQueueDepth()
+	{
+		return filled.size();
+	}
+
+	int getMaxQueueDepth()
+	{
+		return maxQueueDepth;
+	}
+
+	@Override
+	public void run()
+	{
+		try {
+			while (true) {
+				Buffer b = filled.take();
+				if (b == END) return;
+				// after a failure, keep recycling buffers so the producer never stalls, and report it on its next submit
+				if (error == null) {
+					try {
+						b.view.limit(b.length);
+						while (b.view.hasRemaining()) out.write(b.view);
+					} catch (IOException e) {
+						error = e;
+					} finally {
+						b.view.clear();
+					}
+				}
+				synchronized (this) {
+					pending--;
+					notifyAll();
+				}
+				free.add(b);
+			}
+		} catch (InterruptedException e) {
+			// nothing more will be written
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads through the cache match reads from the file, and blocks don't outlive the file version they came from
+ */
+public class DecodedBlockCacheTest
+{
+	private final static int NUM_FRAMES = 10000;
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = File.createTempFile("decodedblockcachetest", ".wav");
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	private void write(int seed) throws Exception
+	{
+		short[] samples = new short[NUM_FRAMES * 2];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = (short) (i * seed);
+		WavFile w = new WavFile();
+		w.create(file, 2, NUM_FRAMES, 16, 8000);
+		w.writeFrames(samples, NUM_FRAMES);
+		w.close();
+	}
+
+	@Test
+	public void readsMatchTheFile() throws Exception
+	{
+		write(7919);
+		WavFile r = new WavFile();
+		r.open(file);
+		DecodedBlockCache cache = new DecodedBlockCache(1000, 3 * 1000 * 2 * 2);
+		short[] expected = new short[300 * 2];
+		short[] actual = new short[300 * 2];
+		for (long frame: new long[] {0, 900, 5000, 950, NUM_FRAMES - 300, 4800}) {
+			r.readFramesAt(frame, expected, 0, 300);
+			assertEquals(300, cache.readFrames(r, frame, actual, 0, 300));
+			assertArrayEquals(expected, actual);
+		}
+		assertEquals(3, cache.getHits());
+		assertEquals(6, cache.getMisses());
+		assertEquals(3 * 1000 * 2 * 2, cache.getSizeBytes());
+
+		DecodedBlockCache.Reader reader = cache.reader(r);
+		reader.seekToFrame(NUM_FRAMES - 100);
+		assertEquals(100, reader.readFrames(actual, 0, 300));
+		assertEquals(NUM_FRAMES, reader.getCurrentFrame());
+		r.close();
+	}
+
+	/**
+	 * a file rewritten with the same length, and opened again, reads the new samples rather than the cached ones
+	 */
+	@Test
+	public void rewrittenFileMisses() throws Exception
+	{
+		DecodedBlockCache cache = new DecodedBlockCache(1000, 1 << 20);
+		short[] before = new short[100 * 2];
+		short[] after = new short[100 * 2];
+
+		write(7919);
+		WavFile r = new WavFile();
+		r.open(file);
+		cache.readFrames(r, 0, before, 0, 100);
+		r.close();
+
+		long modified = file.lastModified();
+		write(104729);
+		assertTrue(file.setLastModified(modified + 2000));
+		r = new WavFile();
+		r.open(file);
+		cache.readFrames(r, 0, after, 0, 100);
+		short[] expected = new short[100 * 2];
+		r.readFramesAt(0, expected, 0, 100);
+		r.close();
+		assertArrayEquals(expected, after);
+		assertFalse(before[1] == after[1]);
+		assertEquals(2, cache.getMisses());
+	}
+}
@@ -0,0 +1,96 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * A recording in durable mode, opened by a second reader while it is still being written, as it would be after a
+ * crash
+ */
+public class HeaderCommitTest
+{
+	private final static int BUFFER_FRAMES = 2048;		// Mono 16 bit frames in a 4096 byte buffer
+
+	private File file;
+	private short[] samples;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = File.createTempFile("headercommittest", ".wav");
+		samples = new short[10000];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = (short) (i * 7919);
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	/**
+	 * open the file as it stands, wait until its header covers the given number of frames, and check them
+	 */
+	private void checkCommitted(long expectedFrames) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + 5000;
+		WavFile r = new WavFile();
+		while (true) {
+			r.open(file);
+			if (r.getNumFrames() == expectedFrames || System.currentTimeMillis() > deadline) break;
+			r.close();
+			Thread.sleep(5);
+		}
+		assertEquals(expectedFrames, r.getNumFrames());
+		short[] back = new short[(int) expectedFrames];
+		assertEquals(expectedFrames, r.readFrames(back, (int) expectedFrames));
+		r.close();
+		for (int i=0 ; i<back.length ; i++) assertEquals(samples[i], back[i]);
+	}
+
+	@Test
+	public void committedOnTime() throws Exception
+	{
+		WavFile w = new WavFile();
+		w.setBufferSize(4096);
+		w.setHeaderCommit(10, 0);
+		w.create(file, 1, 1000000, 16, 8000);
+
+		// the header starts out with no data
+		WavFile r = new WavFile();
+		r.open(file);
+		assertEquals(0, r.getNumFrames());
+		r.close();
+
+		// only the whole buffers written so far have reached the file, the rest is still in the local buffer
+		w.writeFrames(samples, samples.length);
+		checkCommitted((samples.length / BUFFER_FRAMES) * BUFFER_FRAMES);
+		assertTrue(w.getHeaderCommits() > 0);
+
+		w.close();
+		checkCommitted(samples.length);
+	}
+
+	@Test
+	public void committedOnSize() throws Exception
+	{
+		WavFile w = new WavFile();
+		w.setBufferSize(4096);
+		w.setHeaderCommit(0, 3 * 4096);
+		w.create(file, 1, 1000000, 16, 8000);
+
+		// two buffers out isn't enough to ask for a commit, three is
+		w.writeFrames(samples, 2 * BUFFER_FRAMES + 1);
+		Thread.sleep(50);
+		assertEquals(0, w.getHeaderCommits());
+		w.writeFrames(samples, 2 * BUFFER_FRAMES + 1, BUFFER_FRAMES);
+		checkCommitted(3 * BUFFER_FRAMES);
+		assertEquals(1, w.getHeaderCommits());
+		w.close();
+	}
+}
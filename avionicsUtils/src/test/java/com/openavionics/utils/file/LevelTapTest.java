@@ -0,0 +1,136 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pyramids and levels kept up to date while recording, and read from another thread
+ */
+public class LevelTapTest
+{
+	private File file;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = File.createTempFile("leveltaptest", ".wav");
+	}
+
+	@After
+	public void tearDown()
+	{
+		PeakSidecar.sidecarFor(file).delete();
+		file.delete();
+	}
+
+	private static float[] constant(int numFrames, float value)
+	{
+		float[] samples = new float[numFrames];
+		Arrays.fill(samples, value);
+		return samples;
+	}
+
+	@Test
+	public void buildIsASnapshot() throws Exception
+	{
+		PeakPyramid.Builder builder = new PeakPyramid.Builder(1, 1024, 4);
+		builder.add(constant(512, 0.1f), 0, 512);
+		PeakPyramid snapshot = builder.build();
+		assertEquals(0.1f, snapshot.getMax(0, 0, 0), 0);
+
+		builder.add(constant(512, 0.9f), 0, 512);
+		builder.build();
+		builder.add(constant(4096, 0.5f), 0, 4096);
+		assertEquals(0.1f, snapshot.getMax(0, 0, 0), 0);
+		assertEquals(1, snapshot.getNumPeaks(0));
+		assertEquals(0.9f, builder.build().getMax(0, 0, 0), 0);
+	}
+
+	/**
+	 * the tap's pyramid, and the sidecar it writes at close, match one built from the finished file
+	 */
+	@Test
+	public void matchesTheFile() throws Exception
+	{
+		LevelTap tap = new LevelTap(256, 4, 1000, true);
+		WavFile w = new WavFile();
+		w.setLevelTap(tap);
+		w.create(file, 2, 30000, 16, 8000);
+		short[] samples = new short[2 * 999];
+		for (int frame=0 ; frame<30000 ; frame+=999) {
+			int n = Math.min(999, 30000 - frame);
+			for (int i=0 ; i<2*n ; i++) samples[i] = (short) ((frame * 2 + i) * 7919);
+			w.writeFrames(samples, n);
+		}
+		w.close();
+		assertEquals(30000, tap.getFramesSeen());
+		assertTrue(tap.getPeak(0) > 0.9f);
+
+		WavFile r = new WavFile();
+		r.open(file);
+		PeakPyramid expected = PeakPyramid.build(r, 256, 4);
+		PeakPyramid loaded = PeakSidecar.load(r);
+		r.close();
+		assertNotNull(loaded);
+		for (PeakPyramid actual: new PeakPyramid[] {tap.getPyramid(), loaded}) {
+			assertEquals(expected.getNumLevels(), actual.getNumLevels());
+			for (int level=0 ; level<expected.getNumLevels() ; level++) {
+				assertEquals(expected.getNumPeaks(level), actual.getNumPeaks(level));
+				for (int peak=0 ; peak<expected.getNumPeaks(level) ; peak++) {
+					assertEquals(expected.getMin(level, peak, 1), actual.getMin(level, peak, 1), 0);
+					assertEquals(expected.getMax(level, peak, 1), actual.getMax(level, peak, 1), 0);
+					assertEquals(expected.getRms(level, peak, 1), actual.getRms(level, peak, 1), 1e-6);
+				}
+			}
+		}
+	}
+
+	/**
+	 * pyramids polled while recording are each whole: every peak of a constant recording is that constant
+	 */
+	@Test
+	public void pollWhileRecording() throws Exception
+	{
+		LevelTap tap = new LevelTap(64, 2, 1000, false);
+		final WavFile w = new WavFile();
+		w.setBufferSize(4096);
+		w.setLevelTap(tap);
+		w.create(file, 1, 500000, 32, 48000, WavFile.WAV_FORMAT_IEEE_FLOAT);
+		final Exception[] error = new Exception[1];
+		Thread writer = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					float[] samples = constant(1000, 0.5f);
+					for (int i=0 ; i<500 ; i++) w.writeFrames(samples, 1000);
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		writer.start();
+		int polls = 0;
+		while (writer.isAlive() || polls == 0) {
+			PeakPyramid pyramid = tap.getPyramid();
+			for (int level=0 ; level<pyramid.getNumLevels() ; level++) {
+				for (int peak=0 ; peak<pyramid.getNumPeaks(level) ; peak++) {
+					assertEquals(0.5f, pyramid.getMax(level, peak, 0), 0);
+					assertEquals(0.5f, pyramid.getMin(level, peak, 0), 0);
+				}
+			}
+			polls++;
+		}
+		writer.join();
+		w.close();
+		if (error[0] != null) throw error[0];
+		assertEquals(500000, tap.getPyramid().getNumFrames());
+	}
+}
@@ -0,0 +1,92 @@
+package com.openavionics.utils.file;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Wave files written to and read from memory, and the channel behaving as a file would
+ */
+public class MemoryChannelTest
+{
+	private final static int NUM_CHANNELS = 3;
+	private final static int NUM_FRAMES = 20000;
+
+	@Test
+	public void wavRoundTrip() throws Exception
+	{
+		short[] samples = new short[NUM_FRAMES * NUM_CHANNELS];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = (short) (i * 7919);
+		MemoryChannel channel = new MemoryChannel();
+		WavFile w = new WavFile();
+		w.create(channel, NUM_CHANNELS, NUM_FRAMES, 16, 44100, WavFile.WAV_FORMAT_PCM);
+		w.writeFrames(samples, NUM_FRAMES);
+		w.close();
+		assertTrue(channel.isOpen());
+
+		byte[] bytes = channel.toByteArray();
+		ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(0x46464952, bb.getInt(0));		// "RIFF"
+		assertEquals(bytes.length - 8, bb.getInt(4));
+		assertEquals(44 + samples.length * 2, bytes.length);
+
+		WavFile r = new WavFile();
+		MemoryChannel in = new MemoryChannel(bytes);
+		r.open(in);
+		assertEquals(NUM_FRAMES, r.getNumFrames());
+		short[] back = new short[samples.length];
+		assertEquals(NUM_FRAMES, r.readFrames(back, NUM_FRAMES));
+		assertArrayEquals(samples, back);
+		r.seekToFrame(12345);
+		short[] part = new short[100 * NUM_CHANNELS];
+		assertEquals(100, r.readFrames(part, 100));
+		for (int i=0 ; i<part.length ; i++) assertEquals(samples[12345 * NUM_CHANNELS + i], part[i]);
+		int[] at = new int[10 * NUM_CHANNELS];
+		assertEquals(10, r.readFramesAt(777, at, 0, 10));
+		for (int i=0 ; i<at.length ; i++) assertEquals(samples[777 * NUM_CHANNELS + i], at[i]);
+		r.close();
+		assertTrue(in.isOpen());
+	}
+
+	@Test
+	public void behavesAsAFile() throws Exception
+	{
+		MemoryChannel channel = new MemoryChannel(16);
+		assertEquals(4, channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4})));
+		assertEquals(4, channel.position());
+
+		// writing past the end fills the gap with zeros, and grows the channel past its first capacity
+		assertEquals(2, channel.write(ByteBuffer.wrap(new byte[] {5, 6}), 30));
+		assertEquals(32, channel.size());
+		assertEquals(4, channel.position());
+		byte[] bytes = channel.toByteArray();
+		assertEquals(0, bytes[10]);
+		assertEquals(6, bytes[31]);
+
+		// positional reads leave the position alone, and both kinds return -1 at the end
+		ByteBuffer dst = ByteBuffer.allocate(4);
+		assertEquals(2, channel.read(dst, 30));
+		assertEquals(4, channel.position());
+		dst.clear();
+		assertEquals(-1, channel.read(dst, 32));
+		channel.position(32);
+		assertEquals(-1, channel.read(dst));
+
+		channel.truncate(3);
+		assertEquals(3, channel.size());
+		assertEquals(3, channel.position());
+
+		channel.close();
+		assertEquals(3, channel.toByteArray().length);
+		try {
+			channel.size();
+			fail("closed channel still in use");
+		} catch (ClosedChannelException e) {
+			// expected
+		}
+	}
+}
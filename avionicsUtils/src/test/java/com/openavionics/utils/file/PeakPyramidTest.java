@@ -0,0 +1,73 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pyramid levels, and pyramids built from files and queried for drawing
+ */
+public class PeakPyramidTest
+{
+	@Test
+	public void levels() throws Exception
+	{
+		PeakPyramid.Builder builder = new PeakPyramid.Builder(2, 16, 4);
+		float[] samples = new float[2 * 256];
+		for (int i=0 ; i<256 ; i++) {
+			samples[2 * i] = i / 256f;
+			samples[2 * i + 1] = -i / 256f;
+		}
+		builder.add(samples, 0, 256);
+		PeakPyramid pyramid = builder.build();
+		assertEquals(16, pyramid.getNumPeaks(0));
+		assertEquals(4, pyramid.getNumPeaks(1));
+		assertEquals(15 / 256f, pyramid.getMax(0, 0, 0), 0);
+		assertEquals(-15 / 256f, pyramid.getMin(0, 0, 1), 0);
+		assertEquals(255 / 256f, pyramid.getMax(1, 3, 0), 0);
+	}
+
+	/**
+	 * a file whose last peak is short, queried at a zoom that uses an upper level
+	 */
+	@Test
+	public void buildFromFileAndQuery() throws Exception
+	{
+		int numFrames = 100000;
+		File file = File.createTempFile("peakpyramidtest", ".wav");
+		try {
+			float[] samples = new float[numFrames];
+			for (int i=0 ; i<numFrames ; i++) samples[i] = i % 1000 == 0? 0.5f : 0.25f;
+			samples[numFrames - 1] = -0.75f;
+			WavFile w = new WavFile();
+			w.create(file, 1, numFrames, 32, 48000, WavFile.WAV_FORMAT_IEEE_FLOAT);
+			w.writeFrames(samples, numFrames);
+			w.close();
+
+			WavFile r = new WavFile();
+			r.open(file);
+			PeakPyramid pyramid = PeakPyramid.build(r, 100, 10);
+			r.close();
+			assertEquals(numFrames, pyramid.getNumFrames());
+			assertEquals(1000, pyramid.getNumPeaks(0));
+			assertEquals(4, pyramid.getNumLevels());
+			assertEquals(1, pyramid.getNumPeaks(3));
+			assertEquals(-0.75f, pyramid.getMin(3, 0, 0), 0);
+
+			float[] min = new float[10];
+			float[] max = new float[10];
+			float[] rms = new float[10];
+			assertEquals(2, pyramid.getLevelFor(0, numFrames, 10));
+			assertEquals(10, pyramid.query(0, 0, numFrames, 10, min, max, rms));
+			for (int x=0 ; x<10 ; x++) {
+				assertEquals(0.5f, max[x], 0);
+				assertEquals(x < 9? 0.25f : -0.75f, min[x], 0);
+				assertTrue(rms[x] > 0.25f && rms[x] < 0.26f);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
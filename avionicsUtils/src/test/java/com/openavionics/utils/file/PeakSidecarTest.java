@@ -0,0 +1,99 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sidecars written, loaded back, and ignored once stale
+ */
+public class PeakSidecarTest
+{
+	private File file;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = File.createTempFile("peaksidecartest", ".wav");
+		short[] samples = new short[2 * 50000];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = (short) (i * 7919);
+		WavFile w = new WavFile();
+		w.create(file, 2, 50000, 16, 8000);
+		w.writeFrames(samples, 50000);
+		w.close();
+	}
+
+	@After
+	public void tearDown()
+	{
+		PeakSidecar.sidecarFor(file).delete();
+		file.delete();
+	}
+
+	@Test
+	public void writtenAndLoaded() throws Exception
+	{
+		WavFile r = new WavFile();
+		r.open(file);
+		assertNull(PeakSidecar.load(r));
+		PeakPyramid built = PeakSidecar.get(r);
+		assertTrue(PeakSidecar.sidecarFor(file).isFile());
+
+		PeakPyramid loaded = PeakSidecar.load(r);
+		r.close();
+		assertNotNull(loaded);
+		assertEquals(built.getNumFrames(), loaded.getNumFrames());
+		assertEquals(built.getNumLevels(), loaded.getNumLevels());
+		for (int level=0 ; level<built.getNumLevels() ; level++) {
+			assertEquals(built.getNumPeaks(level), loaded.getNumPeaks(level));
+			for (int peak=0 ; peak<built.getNumPeaks(level) ; peak++) {
+				for (int c=0 ; c<2 ; c++) {
+					assertEquals(built.getMin(level, peak, c), loaded.getMin(level, peak, c), 0);
+					assertEquals(built.getMax(level, peak, c), loaded.getMax(level, peak, c), 0);
+					assertEquals(built.getRms(level, peak, c), loaded.getRms(level, peak, c), 0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void staleOnceModified() throws Exception
+	{
+		WavFile r = new WavFile();
+		r.open(file);
+		PeakSidecar.get(r);
+		r.close();
+		assertTrue(file.setLastModified(file.lastModified() + 2000));
+
+		r = new WavFile();
+		r.open(file);
+		assertNull(PeakSidecar.load(r));
+		assertNotNull(PeakSidecar.get(r));
+		assertNotNull(PeakSidecar.load(r));
+		r.close();
+	}
+
+	/**
+	 * a file opened from a channel has no sidecar, so the pyramid is just built
+	 */
+	@Test
+	public void sidecarOfChannel() throws Exception
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			WavFile r = new WavFile();
+			r.open(raf.getChannel());
+			assertNull(PeakSidecar.load(r));
+			assertEquals(50000, PeakSidecar.get(r).getNumFrames());
+			r.close();
+		} finally {
+			raf.close();
+		}
+		assertFalse(PeakSidecar.sidecarFor(file).exists());
+	}
+}
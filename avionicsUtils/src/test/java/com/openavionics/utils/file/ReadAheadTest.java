@@ -0,0 +1,83 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Read ahead, and that stopping it leaves the channel alone
+ */
+public class ReadAheadTest
+{
+	private final static int NUM_FRAMES = 1 << 22;
+
+	private static File file;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception
+	{
+		file = File.createTempFile("readaheadtest", ".wav");
+		WavFile w = new WavFile();
+		w.create(file, 2, NUM_FRAMES, 16, 48000);
+		short[] samples = new short[1 << 16];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = (short) i;
+		for (int written=0 ; written<NUM_FRAMES ; ) written += w.writeFrames(samples, samples.length / 2);
+		w.close();
+	}
+
+	@AfterClass
+	public static void tearDownClass()
+	{
+		file.delete();
+	}
+
+	/**
+	 * closing stops the read ahead thread, which was once done with an interrupt that closed the channel if it
+	 * landed during a read, when the channel may be the caller's
+	 */
+	@Test
+	public void closeLeavesCallersChannelOpen() throws Exception
+	{
+		for (int run=0 ; run<300 ; run++) {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				WavFile r = new WavFile();
+				r.setReadAhead(8, 1 << 16);
+				r.open(channel);
+				short[] samples = new short[200];
+				assertEquals(100, r.readFrames(samples, 100));
+				r.close();
+				assertTrue("channel closed on run " + run, channel.isOpen());
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	@Test
+	public void readsEverythingInOrder() throws Exception
+	{
+		WavFile r = new WavFile();
+		r.setReadAhead(3, 5000);	// Not a whole number of frames, nor a divisor of the buffer
+		r.open(file);
+		short[] samples = new short[3000];
+		long frame = 0;
+		int n;
+		while ((n = r.readFrames(samples, 1500)) > 0) {
+			for (int i=0 ; i<n*2 ; i++) assertEquals((short) ((frame * 2 + i) % (1 << 16)), samples[i]);
+			frame += n;
+			if (frame == 300000) {		// and a seek back, which restarts it
+				r.seekToFrame(frame = 1000);
+			}
+		}
+		r.close();
+		assertEquals(NUM_FRAMES, frame);
+	}
+}
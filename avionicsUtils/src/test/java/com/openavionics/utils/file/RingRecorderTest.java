@@ -0,0 +1,112 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frames pushed through the ring reach the file intact, and the ones that don't fit are counted
+ */
+public class RingRecorderTest
+{
+	private final static int NUM_CHANNELS = 2;
+	private final static int NUM_FRAMES = 200000;
+
+	private File direct;
+	private File recorded;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		direct = File.createTempFile("ringrecordertest", ".wav");
+		recorded = File.createTempFile("ringrecordertest", ".wav");
+	}
+
+	@After
+	public void tearDown()
+	{
+		direct.delete();
+		recorded.delete();
+	}
+
+	private static byte[] contents(File file) throws Exception
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+			return bytes;
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void pushedFramesMatchDirectWrite() throws Exception
+	{
+		short[] samples = new short[NUM_FRAMES * NUM_CHANNELS];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = (short) (i * 7919);
+
+		WavFile w = new WavFile();
+		w.create(direct, NUM_CHANNELS, NUM_FRAMES, 16, 48000);
+		w.writeFrames(samples, NUM_FRAMES);
+		w.close();
+
+		w = new WavFile();
+		w.create(recorded, NUM_CHANNELS, NUM_FRAMES, 16, 48000);
+		RingRecorder recorder = new RingRecorder(w, 1000, 256, false);
+		recorder.start();
+		// uneven pushes that wrap around the ring, each retried until the writer has made room for all of it
+		for (int frame=0 ; frame<NUM_FRAMES ; ) {
+			int n = Math.min(1 + frame % 333, NUM_FRAMES - frame);
+			int pushed = recorder.push(samples, frame * NUM_CHANNELS, n);
+			if (pushed == 0) Thread.yield();
+			frame += pushed;
+		}
+		recorder.stop();
+		w.close();
+
+		assertEquals(1024, recorder.getCapacity());
+		assertEquals(NUM_FRAMES, recorder.getFramesWritten());
+		assertEquals(0, recorder.getQueuedFrames());
+		assertTrue(recorder.getHighWaterMark() <= 1024);
+		byte[] expected = contents(direct);
+		byte[] actual = contents(recorded);
+		assertEquals(expected.length, actual.length);
+		for (int i=0 ; i<expected.length ; i++) {
+			if (expected[i] != actual[i]) fail("differ at byte " + i);
+		}
+	}
+
+	@Test
+	public void overflowIsDropped() throws Exception
+	{
+		WavFile w = new WavFile();
+		w.create(recorded, 1, 1000, 32, 48000, WavFile.WAV_FORMAT_IEEE_FLOAT);
+		RingRecorder recorder = new RingRecorder(w, 64, 16, true);
+		float[] samples = new float[100];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = i / 100f;
+
+		// nothing drains the ring until the writer starts
+		assertEquals(64, recorder.push(samples, 0, 100));
+		assertEquals(36, recorder.getDroppedFrames());
+		assertEquals(0, recorder.push(samples, 0, 1));
+		assertEquals(37, recorder.getDroppedFrames());
+		recorder.start();
+		recorder.stop();
+		w.close();
+
+		WavFile r = new WavFile();
+		r.open(recorded);
+		assertEquals(64, r.getNumFrames());
+		float[] back = new float[64];
+		r.readFrames(back, 64);
+		r.close();
+		for (int i=0 ; i<64 ; i++) assertEquals(samples[i], back[i], 0);
+	}
+}
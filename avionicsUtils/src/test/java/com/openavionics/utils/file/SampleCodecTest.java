@@ -0,0 +1,197 @@
+package com.openavionics.utils.file;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through the sample codecs, the way WavFile sets them up for a file
+ */
+public class SampleCodecTest
+{
+	private final static int COUNT = 1000;
+
+	private static ByteBuffer buffer(int bytesPerSample)
+	{
+		return ByteBuffer.allocate(COUNT * bytesPerSample).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * random values that fit in validBits, signed in containers of more than a byte and unsigned in one byte,
+	 * including the extremes
+	 */
+	private static long[] pcmValues(int validBits, boolean signed)
+	{
+		long min = signed? -(1L << (validBits - 1)) : 0;
+		long max = signed? (1L << (validBits - 1)) - 1 : (1L << validBits) - 1;
+		long[] values = new long[COUNT];
+		Random random = new Random(validBits);
+		for (int i=0 ; i<COUNT ; i++) {
+			long v = random.nextLong();
+			values[i] = validBits == 64? v : min + ((v >>> 1) % (max - min + 1));
+		}
+		values[0] = min;
+		values[1] = max;
+		values[2] = signed? 0 : 1;
+		return values;
+	}
+
+	private static void checkPcm(int validBits, int bytesPerSample, boolean justified) throws AudioFileException
+	{
+		SampleCodec writer = WavFile.writeCodec(WavFile.WAV_FORMAT_PCM, bytesPerSample, validBits, justified);
+		SampleCodec reader = WavFile.readCodec(WavFile.WAV_FORMAT_PCM, bytesPerSample, validBits, justified);
+		ByteBuffer bb = buffer(bytesPerSample);
+
+		long[] values = pcmValues(validBits, bytesPerSample > 1);
+		writer.encode(values, 0, bb, 0, bytesPerSample, COUNT);
+		long[] back = new long[COUNT];
+		reader.decode(bb, 0, bytesPerSample, back, 0, COUNT);
+		assertArrayEquals(validBits + " bits in " + bytesPerSample + " bytes", values, back);
+
+		if (validBits <= 32) {
+			double[] normalised = new double[COUNT];
+			for (int i=0 ; i<COUNT ; i++) normalised[i] = 1.8 * i / COUNT - 0.9;
+			writer.encode(normalised, 0, bb, 0, bytesPerSample, COUNT);
+			double[] doubles = new double[COUNT];
+			reader.decode(bb, 0, bytesPerSample, doubles, 0, COUNT);
+			assertArrayEquals(validBits + " bits as double", normalised, doubles, 4.0 / (1L << (validBits - 1)));
+		}
+	}
+
+	@Test
+	public void pcmRoundTrips() throws Exception
+	{
+		for (int validBits=8 ; validBits<=64 ; validBits+=8) checkPcm(validBits, validBits / 8, false);
+		checkPcm(4, 1, false);
+		checkPcm(12, 2, false);
+		checkPcm(20, 3, false);
+	}
+
+	@Test
+	public void justifiedPcmRoundTrips() throws Exception
+	{
+		checkPcm(12, 2, true);
+		checkPcm(20, 3, true);
+		checkPcm(24, 4, true);
+		checkPcm(20, 4, true);
+		checkPcm(40, 6, true);
+		checkPcm(56, 8, true);
+		checkPcm(8, 2, true);
+	}
+
+	@Test
+	public void justifiedPcmKeepsTheTopBits() throws Exception
+	{
+		SampleCodec writer = WavFile.writeCodec(WavFile.WAV_FORMAT_PCM, 4, 24, true);
+		ByteBuffer bb = buffer(4);
+		writer.encode(new int[] {-(1 << 23), 1}, 0, bb, 0, 4, 2);
+		assertEquals(0x80000000, bb.getInt(0));
+		assertEquals(0x100, bb.getInt(4));
+	}
+
+	/**
+	 * 8 valid bits in a 16 bit container are signed, as the container is, not unsigned as a plain 8 bit file is
+	 */
+	@Test
+	public void eightBitsInSixteenAreSigned() throws Exception
+	{
+		SampleCodec writer = WavFile.writeCodec(WavFile.WAV_FORMAT_PCM, 2, 8, true);
+		SampleCodec reader = WavFile.readCodec(WavFile.WAV_FORMAT_PCM, 2, 8, true);
+		ByteBuffer bb = buffer(2);
+		writer.encode(new int[] {-128, -1, 0, 127}, 0, bb, 0, 2, 4);
+		assertEquals((short) 0x8000, bb.getShort(0));
+		assertEquals((short) 0xFF00, bb.getShort(2));
+		assertEquals(0, bb.getShort(4));
+		assertEquals(0x7F00, bb.getShort(6));
+
+		double[] normalised = new double[4];
+		reader.decode(bb, 0, 2, normalised, 0, 4);
+		assertEquals(-1.0, normalised[0], 0);
+		assertEquals(-1.0 / 128, normalised[1], 0);
+		assertEquals(0, normalised[2], 0);
+		assertEquals(127.0 / 128, normalised[3], 0);
+
+		writer.encode(new double[] {-1.0, 0, 1.0}, 0, bb, 0, 2, 3);
+		assertEquals((short) 0x8100, bb.getShort(0));		// write scale is 2^(n-1)-1, as for any signed size
+		assertEquals(0, bb.getShort(2));
+		assertEquals(0x7F00, bb.getShort(4));
+	}
+
+	@Test
+	public void floatRoundTrips() throws Exception
+	{
+		for (int bytesPerSample=4 ; bytesPerSample<=8 ; bytesPerSample+=4) {
+			SampleCodec writer = WavFile.writeCodec(WavFile.WAV_FORMAT_IEEE_FLOAT, bytesPerSample, bytesPerSample * 8);
+			SampleCodec reader = WavFile.readCodec(WavFile.WAV_FORMAT_IEEE_FLOAT, bytesPerSample, bytesPerSample * 8);
+			ByteBuffer bb = buffer(bytesPerSample);
+			Random random = new Random(bytesPerSample);
+
+			float[] floats = new float[COUNT];
+			for (int i=0 ; i<COUNT ; i++) floats[i] = (float) random.nextGaussian();
+			writer.encode(floats, 0, bb, 0, bytesPerSample, COUNT);
+			float[] floatsBack = new float[COUNT];
+			reader.decode(bb, 0, bytesPerSample, floatsBack, 0, COUNT);
+			assertArrayEquals(floats, floatsBack, 0);
+
+			double[] doubles = new double[COUNT];
+			for (int i=0 ; i<COUNT ; i++) doubles[i] = bytesPerSample == 8? random.nextGaussian() : floats[i];
+			writer.encode(doubles, 0, bb, 0, bytesPerSample, COUNT);
+			double[] doublesBack = new double[COUNT];
+			reader.decode(bb, 0, bytesPerSample, doublesBack, 0, COUNT);
+			assertArrayEquals(doubles, doublesBack, 0);
+		}
+	}
+
+	@Test
+	public void g711RoundTrips() throws Exception
+	{
+		for (int format: new int[] {WavFile.WAV_FORMAT_MULAW, WavFile.WAV_FORMAT_ALAW}) {
+			SampleCodec writer = WavFile.writeCodec(format, 1, 8);
+			SampleCodec reader = WavFile.readCodec(format, 1, 8);
+			ByteBuffer codes = buffer(1);
+			for (int i=0 ; i<256 ; i++) codes.put(i, (byte) i);
+
+			// every code decodes to a value that encodes back to a code for the same value
+			short[] linear = new short[256];
+			reader.decode(codes, 0, 1, linear, 0, 256);
+			ByteBuffer again = buffer(1);
+			writer.encode(linear, 0, again, 0, 1, 256);
+			short[] linearAgain = new short[256];
+			reader.decode(again, 0, 1, linearAgain, 0, 256);
+			assertArrayEquals(linear, linearAgain);
+
+			float[] floats = new float[256];
+			reader.decode(codes, 0, 1, floats, 0, 256);
+			for (int i=0 ; i<256 ; i++) assertEquals(linear[i] / 32768f, floats[i], 0);
+		}
+	}
+
+	@Test
+	public void g711KnownCodes() throws Exception
+	{
+		short[] linear = new short[1];
+		ByteBuffer bb = buffer(1);
+
+		WavFile.writeCodec(WavFile.WAV_FORMAT_MULAW, 1, 8).encode(new short[] {0}, 0, bb, 0, 1, 1);
+		assertEquals((byte) 0xFF, bb.get(0));
+		bb.put(0, (byte) 0x00);
+		WavFile.readCodec(WavFile.WAV_FORMAT_MULAW, 1, 8).decode(bb, 0, 1, linear, 0, 1);
+		assertEquals(-32124, linear[0]);
+
+		WavFile.writeCodec(WavFile.WAV_FORMAT_ALAW, 1, 8).encode(new short[] {0}, 0, bb, 0, 1, 1);
+		assertEquals((byte) 0xD5, bb.get(0));
+		bb.put(0, (byte) 0x2A);
+		WavFile.readCodec(WavFile.WAV_FORMAT_ALAW, 1, 8).decode(bb, 0, 1, linear, 0, 1);
+		assertEquals(-32256, linear[0]);
+	}
+
+	@Test(expected = AudioFileException.class)
+	public void unsupportedFloatSize() throws Exception
+	{
+		WavFile.readCodec(WavFile.WAV_FORMAT_IEEE_FLOAT, 2, 16);
+	}
+}
@@ -0,0 +1,145 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Segments join back up into the stream that was recorded, and each one opens while it is being written
+ */
+public class SegmentedRecorderTest
+{
+	private final static int NUM_CHANNELS = 2;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		dir = File.createTempFile("segmentedrecordertest", "");
+		dir.delete();
+		assertTrue(dir.mkdir());
+	}
+
+	@After
+	public void tearDown()
+	{
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f: files) f.delete();
+		}
+		dir.delete();
+	}
+
+	private static short[] samples(int numFrames)
+	{
+		short[] samples = new short[numFrames * NUM_CHANNELS];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = (short) (i * 7919);
+		return samples;
+	}
+
+	@Test
+	public void segmentsJoinUp() throws Exception
+	{
+		int numFrames = 25000;
+		short[] samples = samples(numFrames);
+		SegmentedRecorder recorder = new SegmentedRecorder(dir, "rec", NUM_CHANNELS, 16, 8000, WavFile.WAV_FORMAT_PCM, 1.0, 0);
+		assertEquals(8000, recorder.getSegmentFrames());
+		recorder.setWriteBehind(2);
+		recorder.start();
+		// uneven writes, some of which straddle a rotation
+		for (int frame=0 ; frame<numFrames ; ) {
+			int n = Math.min(1 + frame % 1777, numFrames - frame);
+			assertEquals(n, recorder.writeFrames(samples, frame * NUM_CHANNELS, n));
+			frame += n;
+		}
+		assertEquals(numFrames, recorder.getFramesWritten());
+		recorder.close();
+
+		List<File> files = recorder.getFinishedFiles();
+		assertEquals(4, files.size());
+		assertEquals(4, dir.listFiles().length);	// the one prepared after the last is gone
+		short[] joined = new short[samples.length];
+		int frame = 0;
+		for (int i=0 ; i<files.size() ; i++) {
+			File f = files.get(i);
+			assertEquals(String.format("rec_%04d.wav", i), f.getName());
+			WavFile r = new WavFile();
+			r.open(f);
+			int n = (int) r.getNumFrames();
+			assertEquals(i < 3? 8000 : 1000, n);
+			assertEquals(44 + n * NUM_CHANNELS * 2, f.length());	// cut to length from the preallocated size
+			short[] part = new short[n * NUM_CHANNELS];
+			assertEquals(n, r.readFrames(part, n));
+			r.close();
+			System.arraycopy(part, 0, joined, frame * NUM_CHANNELS, part.length);
+			frame += n;
+		}
+		assertEquals(numFrames, frame);
+		assertArrayEquals(samples, joined);
+	}
+
+	/**
+	 * open the segment being written, until its header covers at least the given number of frames, checking what it
+	 * covers each time
+	 * @return frames the header covers
+	 */
+	private static long awaitCommitted(File current, short[] samples, long minFrames, long millis) throws Exception
+	{
+		long deadline = System.currentTimeMillis() + millis;
+		long committed;
+		do {
+			Thread.sleep(5);
+			WavFile r = new WavFile();
+			r.open(current);
+			committed = r.getNumFrames();
+			short[] part = new short[(int) committed * NUM_CHANNELS];
+			r.readFrames(part, (int) committed);
+			r.close();
+			for (int i=0 ; i<part.length ; i++) assertEquals(samples[i], part[i]);
+		} while (committed < minFrames && System.currentTimeMillis() < deadline);
+		return committed;
+	}
+
+	/**
+	 * the segment being written is preallocated, but its header only ever covers what has been written, so after a
+	 * crash it opens with that rather than with the zeros after it
+	 */
+	@Test
+	public void segmentOpensWhileWritten() throws Exception
+	{
+		short[] samples = samples(6000);
+		SegmentedRecorder recorder = new SegmentedRecorder(dir, "rec", NUM_CHANNELS, 16, 8000, WavFile.WAV_FORMAT_PCM, 1.0, 0);
+		recorder.setHeaderCommit(10, 0);
+		recorder.start();
+		recorder.writeFrames(samples, 0, 6000);
+		File current = recorder.getCurrentFile();
+		assertTrue(current.length() > 44 + 8000 * NUM_CHANNELS * 2);
+
+		long committed = awaitCommitted(current, samples, 5000, 5000);
+		assertTrue(committed >= 5000 && committed <= 6000);
+		recorder.close();
+	}
+
+	/**
+	 * header commits are on even if never asked for, or turned off
+	 */
+	@Test
+	public void headerCommitCantBeTurnedOff() throws Exception
+	{
+		short[] samples = samples(6000);
+		SegmentedRecorder recorder = new SegmentedRecorder(dir, "rec", NUM_CHANNELS, 16, 8000, WavFile.WAV_FORMAT_PCM, 1.0, 0);
+		recorder.setHeaderCommit(0, 0);
+		recorder.start();
+		recorder.writeFrames(samples, 0, 6000);
+
+		long committed = awaitCommitted(recorder.getCurrentFile(), samples, 5000, 3 * SegmentedRecorder.DEFAULT_HEADER_COMMIT_MILLIS);
+		assertTrue(committed >= 5000 && committed <= 6000);
+		recorder.close();
+	}
+}
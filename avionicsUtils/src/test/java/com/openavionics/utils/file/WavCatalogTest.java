@@ -0,0 +1,146 @@
+package com.openavionics.utils.file;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Catalogs built from a directory tree, saved and loaded back
+ */
+public class WavCatalogTest
+{
+	private File root;
+	private File catalogFile;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		root = File.createTempFile("wavcatalogtest", "");
+		root.delete();
+		assertTrue(root.mkdir());
+		catalogFile = File.createTempFile("wavcatalogtest", ".catalog");
+	}
+
+	@After
+	public void tearDown()
+	{
+		delete(root);
+		catalogFile.delete();
+	}
+
+	private static void delete(File f)
+	{
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File child: files) {
+				// Links are deleted, not followed
+				if (child.getAbsolutePath().equals(canonical(child))) delete(child);
+				else child.delete();
+			}
+		}
+		f.delete();
+	}
+
+	private static String canonical(File f)
+	{
+		try {
+			return f.getCanonicalPath();
+		} catch (Exception e) {
+			return f.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * make a symbolic link with ln, as there is no way to in Java 7 on Android
+	 * @return false if links can't be made here
+	 */
+	private static boolean link(File target, File link) throws Exception
+	{
+		try {
+			return Runtime.getRuntime().exec(new String[] {"ln", "-s", target.getPath(), link.getPath()}).waitFor() == 0;
+		} catch (java.io.IOException e) {
+			return false;
+		}
+	}
+
+	private static File write(File dir, String name, int numFrames, boolean extensible) throws Exception
+	{
+		File file = new File(dir, name);
+		WavFile w = new WavFile();
+		if (extensible) w.setExtensible(32, 0x3);
+		w.create(file, 2, numFrames, 24, 48000, WavFile.WAV_FORMAT_PCM);
+		w.writeFrames(new int[2 * numFrames], numFrames);
+		w.close();
+		return file;
+	}
+
+	@Test
+	public void saveAndLoad() throws Exception
+	{
+		File plain = write(root, "plain.wav", 100, false);
+		File sub = new File(root, "sub");
+		assertTrue(sub.mkdir());
+		File ext = write(sub, "ext.wav", 200, true);
+
+		WavCatalog catalog = new WavCatalog();
+		assertEquals(2, catalog.update(root, 3));
+		catalog.save(catalogFile);
+
+		WavCatalog loaded = WavCatalog.load(catalogFile);
+		assertEquals(2, loaded.size());
+		WavInfo info = loaded.get(ext).getInfo();
+		assertTrue(info.isExtensible());
+		assertEquals(0x3, info.getChannelMask());
+		assertEquals(4, info.getBytesPerSample());
+		assertEquals(24, info.getValidBits());
+		assertEquals(200, info.getNumFrames());
+		info = loaded.get(plain).getInfo();
+		assertFalse(info.isExtensible());
+		assertEquals(3, info.getBytesPerSample());
+		assertEquals(100, info.getNumFrames());
+
+		// nothing has changed, so nothing is probed again
+		assertEquals(0, loaded.update(root, 3));
+		assertTrue(ext.delete());
+		assertEquals(0, loaded.update(root, 3));
+		assertEquals(1, loaded.size());
+	}
+
+	/**
+	 * a catalog saved by an earlier version is dropped, so everything is probed again
+	 */
+	@Test
+	public void otherVersionIsEmpty() throws Exception
+	{
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(catalogFile));
+		out.writeInt(0x54434157);
+		out.writeInt(1);
+		out.writeInt(1);
+		out.writeUTF(new File(root, "old.wav").getPath());
+		out.close();
+		assertEquals(0, WavCatalog.load(catalogFile).size());
+	}
+
+	/**
+	 * a link back up the tree, and a second link to one directory, are each walked once
+	 */
+	@Test
+	public void linkLoopEnds() throws Exception
+	{
+		File sub = new File(root, "sub");
+		assertTrue(sub.mkdir());
+		write(sub, "a.wav", 100, false);
+		if (!link(root.getCanonicalFile(), new File(sub, "loop"))) return;		// No links on this file system
+		assertTrue(link(sub.getCanonicalFile(), new File(root, "again")));
+
+		WavCatalog catalog = new WavCatalog();
+		assertEquals(1, catalog.update(root, 4));
+		assertEquals(1, catalog.size());
+	}
+}
@@ -0,0 +1,282 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Files written and read back through WavFile
+ */
+public class WavFileTest
+{
+	private final static int NUM_CHANNELS = 3;
+	private final static int NUM_FRAMES = 20000;
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = File.createTempFile("wavfiletest", ".wav");
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	/**
+	 * a different value for every sample, that fits in 16 bits
+	 */
+	private static short[] samples(int numFrames)
+	{
+		short[] samples = new short[numFrames * NUM_CHANNELS];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = (short) (i * 7919);
+		return samples;
+	}
+
+	private void writeSamples(short[] samples) throws Exception
+	{
+		WavFile w = new WavFile();
+		w.create(file, NUM_CHANNELS, samples.length / NUM_CHANNELS, 16, 44100);
+		assertEquals(samples.length / NUM_CHANNELS, w.writeFrames(samples, samples.length / NUM_CHANNELS));
+		w.close();
+	}
+
+	private static void checkRead(WavFile r, short[] samples) throws Exception
+	{
+		assertEquals(NUM_CHANNELS, r.getNumChannels());
+		assertEquals(samples.length / NUM_CHANNELS, r.getNumFrames());
+
+		short[] all = new short[samples.length];
+		assertEquals(NUM_FRAMES, r.readFrames(all, NUM_FRAMES));
+		assertArrayEquals(samples, all);
+		assertEquals(0, r.getFramesRemaining());
+
+		// seeks, backwards and forwards, each followed by a read across a buffer boundary
+		for (long frame: new long[] {0, 12345, 17, NUM_FRAMES - 100, 5000}) {
+			r.seekToFrame(frame);
+			short[] part = new short[100 * NUM_CHANNELS];
+			assertEquals(100, r.readFrames(part, 100));
+			for (int i=0 ; i<part.length ; i++) assertEquals(samples[(int) frame * NUM_CHANNELS + i], part[i]);
+		}
+	}
+
+	@Test
+	public void roundTripAndSeek() throws Exception
+	{
+		short[] samples = samples(NUM_FRAMES);
+		writeSamples(samples);
+		assertEquals(44 + samples.length * 2, file.length());
+
+		WavFile r = new WavFile();
+		r.open(file);
+		checkRead(r, samples);
+		r.close();
+	}
+
+	@Test
+	public void roundTripAndSeekMapped() throws Exception
+	{
+		short[] samples = samples(NUM_FRAMES);
+		writeSamples(samples);
+
+		WavFile r = new WavFile();
+		r.open(file, true);
+		checkRead(r, samples);
+		r.close();
+	}
+
+	/**
+	 * positional reads from several threads, alongside a sequential reader whose position they leave alone
+	 */
+	@Test
+	public void readFramesAtFromManyThreads() throws Exception
+	{
+		final short[] samples = samples(NUM_FRAMES);
+		writeSamples(samples);
+
+		final WavFile r = new WavFile();
+		r.open(file);
+		final Exception[] errors = new Exception[4];
+		Thread[] threads = new Thread[errors.length];
+		for (int t=0 ; t<threads.length ; t++) {
+			final int index = t;
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try {
+						int[] at = new int[100 * NUM_CHANNELS];
+						for (int frame=index ; frame<NUM_FRAMES ; frame+=997) {
+							int n = r.readFramesAt(frame, at, 0, 100);
+							assertEquals(Math.min(100, NUM_FRAMES - frame), n);
+							for (int i=0 ; i<n*NUM_CHANNELS ; i++) assertEquals(samples[frame * NUM_CHANNELS + i], at[i]);
+						}
+					} catch (Exception e) {
+						errors[index] = e;
+					} catch (AssertionError e) {
+						errors[index] = new Exception(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		checkRead(r, samples);
+		for (Thread thread: threads) thread.join();
+		for (Exception e: errors) if (e != null) throw e;
+
+		assertEquals(0, r.readFramesAt(NUM_FRAMES, new short[NUM_CHANNELS], 0, 1));
+		r.close();
+	}
+
+	@Test
+	public void extensible() throws Exception
+	{
+		int[] samples = new int[NUM_FRAMES * NUM_CHANNELS];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = (i * 104729) % (1 << 23);
+		WavFile w = new WavFile();
+		w.setExtensible(32, 0x7);
+		w.create(file, NUM_CHANNELS, NUM_FRAMES, 24, 48000, WavFile.WAV_FORMAT_PCM);
+		w.writeFrames(samples, NUM_FRAMES);
+		w.close();
+		assertEquals(68 + samples.length * 4, file.length());
+
+		WavFile r = new WavFile();
+		r.open(file);
+		assertTrue(r.isExtensible());
+		assertEquals(0x7, r.getChannelMask());
+		assertEquals(24, r.getValidBits());
+		int[] back = new int[samples.length];
+		r.readFrames(back, NUM_FRAMES);
+		r.close();
+		assertArrayEquals(samples, back);
+
+		WavInfo info = WavInfo.probe(file);
+		assertEquals(NUM_FRAMES, info.getNumFrames());
+		assertEquals(4 * NUM_CHANNELS, info.getBlockAlign());
+	}
+
+	/**
+	 * 8 valid bits in 16 bit containers, which read back as signed 8 bit values
+	 */
+	@Test
+	public void extensibleEightInSixteen() throws Exception
+	{
+		int[] samples = new int[256];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = i - 128;
+		WavFile w = new WavFile();
+		w.setExtensible(16, 0x4);
+		w.create(file, 1, samples.length, 8, 8000, WavFile.WAV_FORMAT_PCM);
+		w.writeFrames(samples, samples.length);
+		w.close();
+		assertEquals(68 + samples.length * 2, file.length());
+
+		WavFile r = new WavFile();
+		r.open(file);
+		assertEquals(8, r.getValidBits());
+		assertTrue(r.isExtensible());
+		int[] back = new int[samples.length];
+		r.readFrames(back, samples.length);
+		r.seekToFrame(0);
+		float[] floats = new float[samples.length];
+		r.readFrames(floats, samples.length);
+		r.close();
+		assertArrayEquals(samples, back);
+		for (int i=0 ; i<samples.length ; i++) assertEquals(samples[i] / 128f, floats[i], 0);
+	}
+
+	@Test
+	public void doubleFloats() throws Exception
+	{
+		double[] samples = new double[NUM_FRAMES * NUM_CHANNELS];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = Math.sin(i * 0.001) / 3;
+		WavFile w = new WavFile();
+		w.create(file, NUM_CHANNELS, NUM_FRAMES, 64, 96000, WavFile.WAV_FORMAT_IEEE_FLOAT);
+		w.writeFrames(samples, NUM_FRAMES);
+		w.close();
+
+		WavFile r = new WavFile();
+		r.open(file);
+		assertEquals(64, r.getValidBits());
+		double[] back = new double[samples.length];
+		r.readFrames(back, NUM_FRAMES);
+		r.seekToFrame(NUM_FRAMES - 10);
+		float[] floats = new float[10 * NUM_CHANNELS];
+		assertEquals(10, r.readFrames(floats, 10));
+		r.close();
+		assertArrayEquals(samples, back, 0);
+		for (int i=0 ; i<floats.length ; i++) assertEquals((float) samples[samples.length - floats.length + i], floats[i], 0);
+	}
+
+	@Test
+	public void planarFloats() throws Exception
+	{
+		float[][] planar = new float[NUM_CHANNELS][NUM_FRAMES];
+		for (int c=0 ; c<NUM_CHANNELS ; c++) {
+			for (int i=0 ; i<NUM_FRAMES ; i++) planar[c][i] = (float) Math.sin(i * 0.01 + c);
+		}
+		WavFile w = new WavFile();
+		w.setBufferSize(1 << 20);
+		w.create(file, NUM_CHANNELS, NUM_FRAMES, 32, 48000, WavFile.WAV_FORMAT_IEEE_FLOAT);
+		assertEquals(NUM_FRAMES, w.writeFrames(planar, NUM_FRAMES));
+		w.close();
+
+		WavFile r = new WavFile();
+		r.open(file, true);
+		float[] interleaved = new float[NUM_FRAMES * NUM_CHANNELS];
+		r.readFrames(interleaved, NUM_FRAMES);
+		for (int i=0 ; i<NUM_FRAMES ; i++) {
+			for (int c=0 ; c<NUM_CHANNELS ; c++) assertEquals(planar[c][i], interleaved[i * NUM_CHANNELS + c], 0);
+		}
+
+		r.seekToFrame(0);
+		float[][] back = new float[NUM_CHANNELS][NUM_FRAMES + 1];
+		assertEquals(NUM_FRAMES, r.readFrames(back, 1, NUM_FRAMES));
+		float[][] at = new float[NUM_CHANNELS][NUM_FRAMES];
+		assertEquals(NUM_FRAMES - 10, r.readFramesAt(10, at, 0, NUM_FRAMES));
+		r.close();
+		for (int c=0 ; c<NUM_CHANNELS ; c++) {
+			for (int i=0 ; i<NUM_FRAMES ; i++) assertEquals(planar[c][i], back[c][i + 1], 0);
+			for (int i=10 ; i<NUM_FRAMES ; i++) assertEquals(planar[c][i], at[c][i - 10], 0);
+		}
+	}
+
+	/**
+	 * planar 24 bit ints, written from an offset, through a buffer smaller than a frame block
+	 */
+	@Test
+	public void planarInts() throws Exception
+	{
+		int[][] planar = new int[NUM_CHANNELS][NUM_FRAMES + 5];
+		for (int c=0 ; c<NUM_CHANNELS ; c++) {
+			for (int i=0 ; i<NUM_FRAMES + 5 ; i++) planar[c][i] = ((i * 104729 + c) % (1 << 23)) - (1 << 22);
+		}
+		WavFile w = new WavFile();
+		w.setBufferSize(1000);
+		w.create(file, NUM_CHANNELS, NUM_FRAMES, 24, 48000);
+		assertEquals(NUM_FRAMES, w.writeFrames(planar, 5, NUM_FRAMES));
+		w.close();
+
+		WavFile r = new WavFile();
+		r.open(file);
+		int[] interleaved = new int[NUM_FRAMES * NUM_CHANNELS];
+		assertEquals(NUM_FRAMES, r.readFrames(interleaved, NUM_FRAMES));
+		r.seekToFrame(0);
+		int[][] back = new int[NUM_CHANNELS][NUM_FRAMES];
+		assertEquals(NUM_FRAMES, r.readFrames(back, 0, NUM_FRAMES));
+		r.close();
+		for (int c=0 ; c<NUM_CHANNELS ; c++) {
+			for (int i=0 ; i<NUM_FRAMES ; i++) {
+				assertEquals(planar[c][i + 5], interleaved[i * NUM_CHANNELS + c]);
+				assertEquals(planar[c][i + 5], back[c][i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.openavionics.utils.file;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Headers laid out by put() and parsed back by read(), in their plain, reserved and RF64 forms
+ */
+public class WavHeaderTest
+{
+	private static WavHeader stereo24()
+	{
+		WavHeader h = new WavHeader();
+		h.format = WavFile.WAV_FORMAT_PCM;
+		h.numChannels = 2;
+		h.sampleRate = 96000;
+		h.validBits = 24;
+		h.bytesPerSample = 3;
+		h.blockAlign = 6;
+		return h;
+	}
+
+	private static WavHeader parse(byte[] header, int length) throws Exception
+	{
+		return WavHeader.read(Channels.newChannel(new ByteArrayInputStream(header, 0, length)), new byte[64]);
+	}
+
+	@Test
+	public void plain() throws Exception
+	{
+		byte[] dst = new byte[WavHeader.MAX_LENGTH];
+		int length = stereo24().put(dst, 6000, false);
+		assertEquals(44, length);
+		assertEquals(WavFile.RIFF_CHUNK_ID, WavFile.getLE(dst, 0, 4));
+		assertEquals(36 + 6000, WavFile.getLE(dst, 4, 4));
+
+		WavHeader h = parse(dst, length);
+		assertEquals(2, h.numChannels);
+		assertEquals(96000, h.sampleRate);
+		assertEquals(24, h.validBits);
+		assertEquals(6, h.blockAlign);
+		assertEquals(6000, h.dataChunkSize);
+		assertEquals(44, h.dataStart);
+	}
+
+	/**
+	 * room for a ds64 chunk, not yet needed, is a JUNK chunk that readers skip
+	 */
+	@Test
+	public void reservedIsJunk() throws Exception
+	{
+		byte[] dst = new byte[WavHeader.MAX_LENGTH];
+		int length = stereo24().put(dst, 6000, true);
+		assertEquals(44 + 8 + WavHeader.DS64_SIZE, length);
+		assertEquals(WavFile.RIFF_CHUNK_ID, WavFile.getLE(dst, 0, 4));
+		assertEquals(WavFile.JUNK_CHUNK_ID, WavFile.getLE(dst, 12, 4));
+		assertEquals(WavHeader.DS64_SIZE, WavFile.getLE(dst, 16, 4));
+		assertEquals(length - 8 + 6000, WavFile.getLE(dst, 4, 4));
+
+		WavHeader h = parse(dst, length);
+		assertEquals(6000, h.dataChunkSize);
+		assertEquals(length, h.dataStart);
+	}
+
+	/**
+	 * over 4GB, the reserved room becomes a ds64 chunk, in the same place, so the header keeps its length
+	 */
+	@Test
+	public void rf64() throws Exception
+	{
+		long dataChunkSize = 6L * 1000000000L;		// 6GB, a whole number of frames
+		assertTrue(WavHeader.needsDs64(dataChunkSize));
+		byte[] dst = new byte[WavHeader.MAX_LENGTH];
+		int length = stereo24().put(dst, dataChunkSize, true);
+		assertEquals(44 + 8 + WavHeader.DS64_SIZE, length);
+
+		assertEquals(WavFile.RF64_CHUNK_ID, WavFile.getLE(dst, 0, 4));
+		assertEquals(WavHeader.UNKNOWN_LENGTH, WavFile.getLE(dst, 4, 4));
+		assertEquals(WavFile.DS64_CHUNK_ID, WavFile.getLE(dst, 12, 4));
+		assertEquals(WavHeader.DS64_SIZE, WavFile.getLE(dst, 16, 4));
+		assertEquals(length - 8 + dataChunkSize, WavFile.getLE(dst, 20, 8));		// RIFF size
+		assertEquals(dataChunkSize, WavFile.getLE(dst, 28, 8));
+		assertEquals(dataChunkSize / 6, WavFile.getLE(dst, 36, 8));				// Sample count
+		assertEquals(WavHeader.UNKNOWN_LENGTH, WavFile.getLE(dst, length - 4, 4));	// data chunk's own size
+
+		WavHeader h = parse(dst, length);
+		assertEquals(length - 8 + dataChunkSize, h.riffChunkSize);
+		assertEquals(dataChunkSize, h.dataChunkSize);
+		assertEquals(length, h.dataStart);
+		assertEquals(1000000000L, h.dataChunkSize / h.blockAlign);
+		assertEquals(24, h.validBits);
+	}
+
+	@Test
+	public void needsDs64AtTheLimit() throws Exception
+	{
+		// the largest data chunk that fits a plain RIFF size with the longest header, and a word align byte
+		long limit = 0xFFFFFFFEL - (WavHeader.MAX_LENGTH - 8) - 1;
+		assertFalse(WavHeader.needsDs64(limit));
+		assertTrue(WavHeader.needsDs64(limit + 1));
+		assertFalse(WavHeader.needsDs64(0));
+
+		// which put() keeps as a plain RIFF header, with the sizes in 32 bits
+		byte[] dst = new byte[WavHeader.MAX_LENGTH];
+		WavHeader h = stereo24();
+		int length = h.put(dst, limit, true);
+		assertEquals(WavFile.RIFF_CHUNK_ID, WavFile.getLE(dst, 0, 4));
+		assertEquals(limit, parse(dst, length).dataChunkSize);
+	}
+
+	@Test(expected = AudioFileException.class)
+	public void rf64WithoutDs64() throws Exception
+	{
+		byte[] dst = new byte[WavHeader.MAX_LENGTH];
+		int length = stereo24().put(dst, 6000, false);
+		WavFile.putLE(WavFile.RF64_CHUNK_ID, dst, 0, 4);
+		parse(dst, length);
+	}
+}
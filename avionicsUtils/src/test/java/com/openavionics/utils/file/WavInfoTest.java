@@ -0,0 +1,88 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * What probe() reports, against what the file was created with
+ */
+public class WavInfoTest
+{
+	private File file;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = File.createTempFile("wavinfotest", ".wav");
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	@Test
+	public void plain() throws Exception
+	{
+		WavFile w = new WavFile();
+		w.create(file, 2, 1000, 16, 44100);
+		w.writeFrames(new short[2000], 1000);
+		w.close();
+
+		WavInfo info = WavInfo.probe(file);
+		assertEquals(WavFile.WAV_FORMAT_PCM, info.getFormat());
+		assertEquals(2, info.getNumChannels());
+		assertEquals(44100, info.getSampleRate());
+		assertEquals(16, info.getValidBits());
+		assertEquals(2, info.getBytesPerSample());
+		assertEquals(4, info.getBlockAlign());
+		assertFalse(info.isExtensible());
+		assertEquals(0, info.getChannelMask());
+		assertEquals(44, info.getDataStart());
+		assertEquals(1000, info.getNumFrames());
+		assertEquals(file.length(), info.getFileLength());
+	}
+
+	@Test
+	public void extensible() throws Exception
+	{
+		WavFile w = new WavFile();
+		w.setExtensible(32, 0x63F);		// 7.1
+		w.create(file, 8, 1000, 24, 48000, WavFile.WAV_FORMAT_PCM);
+		w.writeFrames(new int[8000], 1000);
+		w.close();
+
+		WavInfo info = WavInfo.probe(file);
+		assertEquals(WavFile.WAV_FORMAT_PCM, info.getFormat());
+		assertEquals(24, info.getValidBits());
+		assertEquals(4, info.getBytesPerSample());
+		assertEquals(32, info.getBlockAlign());
+		assertTrue(info.isExtensible());
+		assertEquals(0x63F, info.getChannelMask());
+		assertEquals(1000, info.getNumFrames());
+	}
+
+	/**
+	 * a recording cut short reports the frames it holds, rather than what its header says
+	 */
+	@Test
+	public void cutShort() throws Exception
+	{
+		WavFile w = new WavFile();
+		w.create(file, 1, 1000, 16, 8000);
+		w.writeFrames(new short[1000], 1000);
+		w.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(44 + 2 * 600 + 1);
+		raf.close();
+
+		assertEquals(600, WavInfo.probe(file).getNumFrames());
+	}
+}
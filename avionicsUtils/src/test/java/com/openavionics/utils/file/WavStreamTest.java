@@ -0,0 +1,153 @@
+package com.openavionics.utils.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams written and read without seeking, and the files they make opened by WavFile
+ */
+public class WavStreamTest
+{
+	private final static int NUM_CHANNELS = 3;
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		file = File.createTempFile("wavstreamtest", ".wav");
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	private static short[] samples(int numFrames)
+	{
+		short[] samples = new short[numFrames * NUM_CHANNELS];
+		for (int i=0 ; i<samples.length ; i++) samples[i] = (short) (i * 7919);
+		return samples;
+	}
+
+	@Test
+	public void streamWriterMatchesReader() throws Exception
+	{
+		short[] samples = samples(100);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WavStreamWriter w = new WavStreamWriter(out, NUM_CHANNELS, 16, 44100);
+		w.writeFrames(samples, 0, 100);
+		w.close();
+
+		WavStreamReader r = new WavStreamReader(new ByteArrayInputStream(out.toByteArray()));
+		short[] back = new short[samples.length];
+		assertEquals(100, r.readFrames(back, 0, 100));
+		r.close();
+		assertArrayEquals(samples, back);
+	}
+
+	@Test
+	public void streamedFileOpens() throws Exception
+	{
+		short[] samples = samples(1000);
+		FileOutputStream out = new FileOutputStream(file);
+		WavStreamWriter w = new WavStreamWriter(out, NUM_CHANNELS, 16, 8000);
+		w.writeFrames(samples, 0, 1000);
+		w.close();
+		out.close();
+		out = new FileOutputStream(file, true);
+		out.write(0);		// Part of a frame, which is left out
+		out.close();
+
+		WavFile r = new WavFile();
+		r.open(file);
+		assertEquals(1000, r.getNumFrames());
+		short[] back = new short[samples.length];
+		r.readFrames(back, 1000);
+		r.close();
+		assertArrayEquals(samples, back);
+
+		WavStreamReader sr = new WavStreamReader(new FileInputStream(file));
+		assertEquals(-1, sr.getNumFrames());
+		assertEquals(1000, sr.readFrames(back, 0, 2000));
+		sr.close();
+		assertArrayEquals(samples, back);
+	}
+
+	@Test
+	public void emptyDataChunkStaysEmpty() throws Exception
+	{
+		WavFile w = new WavFile();
+		w.create(file, 1, 0, 16, 8000);
+		w.close();
+
+		// a LIST chunk after the data, which must not be taken for samples
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length());
+		raf.write(new byte[] {'L', 'I', 'S', 'T', 0, 0, 0, 0});
+		raf.seek(4);
+		raf.write(new byte[] {44, 0, 0, 0});
+		raf.close();
+
+		WavFile r = new WavFile();
+		r.open(file);
+		assertEquals(0, r.getNumFrames());
+		r.close();
+		assertEquals(0, WavInfo.probe(file).getNumFrames());
+		WavStreamReader sr = new WavStreamReader(new FileInputStream(file));
+		assertEquals(0, sr.getNumFrames());
+		assertEquals(0, sr.readFrames(new short[100], 0, 100));
+		sr.close();
+	}
+
+	/**
+	 * an odd length chunk before the fmt chunk and one between it and the data, skipped alike by every reader
+	 */
+	@Test
+	public void chunksBeforeTheData() throws Exception
+	{
+		short[] samples = samples(500);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WavStreamWriter w = new WavStreamWriter(out, NUM_CHANNELS, 16, 8000);
+		w.writeFrames(samples, 0, 500);
+		w.close();
+		byte[] plain = out.toByteArray();
+
+		// RIFF header, a 5 byte chunk and its pad byte, the fmt chunk, a 4 byte chunk, then the data chunk
+		out = new ByteArrayOutputStream();
+		out.write(plain, 0, 12);
+		out.write(new byte[] {'b', 'e', 'x', 't', 5, 0, 0, 0, 1, 2, 3, 4, 5, 0});
+		out.write(plain, 12, 24);
+		out.write(new byte[] {'f', 'a', 'c', 't', 4, 0, 0, 0, (byte) 0xF4, 1, 0, 0});
+		out.write(plain, 36, plain.length - 36);
+		FileOutputStream fo = new FileOutputStream(file);
+		fo.write(out.toByteArray());
+		fo.close();
+
+		WavFile r = new WavFile();
+		r.open(file);
+		assertEquals(500, r.getNumFrames());
+		short[] back = new short[samples.length];
+		assertEquals(500, r.readFrames(back, 500));
+		r.close();
+		assertArrayEquals(samples, back);
+
+		assertEquals(12 + 14 + 24 + 12 + 8, WavInfo.probe(file).getDataStart());
+		WavStreamReader sr = new WavStreamReader(new FileInputStream(file));
+		back = new short[samples.length];
+		assertEquals(500, sr.readFrames(back, 0, 500));
+		sr.close();
+		assertArrayEquals(samples, back);
+	}
+}
@@ -0,0 +1,70 @@
+package com.openavionics.utils.file;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Files written behind come out the same as ones written synchronously
+ */
+public class WriteBehindTest
+{
+	private final static int NUM_CHANNELS = 2;
+	private final static int NUM_FRAMES = 300000;
+
+	private static byte[] contents(File file) throws Exception
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+			return bytes;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * write the same frames with the given number of write behind buffers, in uneven pieces so that they don't
+	 * line up with the buffers
+	 */
+	private static byte[] write(int numBuffers) throws Exception
+	{
+		File file = File.createTempFile("writebehindtest", ".wav");
+		try {
+			WavFile w = new WavFile();
+			w.setBufferSize(4096);
+			w.setWriteBehind(numBuffers);
+			w.create(file, NUM_CHANNELS, NUM_FRAMES, 24, 48000);
+			int[] samples = new int[777 * NUM_CHANNELS];
+			for (int frame=0 ; frame<NUM_FRAMES ; ) {
+				int n = Math.min(1 + frame % 777, NUM_FRAMES - frame);
+				for (int i=0 ; i<n*NUM_CHANNELS ; i++) samples[i] = (frame * NUM_CHANNELS + i) * 31 % (1 << 23);
+				assertEquals(n, w.writeFrames(samples, n));
+				frame += n;
+			}
+			w.close();
+			assertEquals(0, w.getWriteBehindQueueDepth());
+			return contents(file);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void sameAsSynchronous() throws Exception
+	{
+		byte[] expected = write(0);
+		assertEquals(44 + NUM_FRAMES * NUM_CHANNELS * 3, expected.length);
+		for (int numBuffers: new int[] {2, 3}) {
+			byte[] actual = write(numBuffers);
+			assertEquals(expected.length, actual.length);
+			for (int i=0 ; i<expected.length ; i++) {
+				if (expected[i] != actual[i]) fail(numBuffers + " buffers differ at byte " + i);
+			}
+		}
+	}
+}